@@ -0,0 +1,357 @@
+package csc460.csps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import csc460.csps.constraints.AllDiffConstraint;
+import csc460.csps.constraints.AllSameConstraint;
+import csc460.csps.constraints.Constraint;
+import csc460.csps.constraints.MaxCountNConstraint;
+
+/**
+ * Establishes (generalized) arc consistency over a CSP's constraint network
+ * using AC-3: a queue of constraints is revised one at a time, and whenever a
+ * revision shrinks a variable's domain, the other constraints on that
+ * variable are put back on the queue. This runs until nothing changes or
+ * some unassigned variable's domain is wiped out.
+ *
+ * An assigned variable is treated as having only its assigned value in its
+ * domain. Each constraint type is revised as follows:
+ *     AllDiff -- a value held by an assigned variable or a singleton domain
+ *                is removed from every other operand; or, if the CSP uses
+ *                the global AllDiff propagator, every value that can't be
+ *                part of a complete matching is removed (see CardinalityMatching)
+ *     AllSame -- every operand's domain is cut down to the intersection of
+ *                all of the operands' domains
+ *     MaxCount n -- once n operands are fixed to a value, it is removed from
+ *                the rest; or, if the CSP uses the global cardinality
+ *                propagator, every value that can't be part of a matching
+ *                using each value at most n times is removed
+ *
+ * The model is only read, so one instance can be shared by several searches.
+ */
+public class ArcConsistency<DomainType> {
+    CSP<DomainType> csp;
+    CardinalityMatching<DomainType> cardinalityMatching;
+    // The queue, per-constraint flags, and revision buffers establish works
+    // with, kept per thread and reused so maintaining arc consistency
+    // doesn't allocate at every node. (The global propagators in
+    // CardinalityMatching still build their graphs per call.)
+    ThreadLocal<Scratch> scratch;
+
+    /**
+     * The working space for one thread's calls to establish. Between calls,
+     * no constraint is marked as queued. The buffers for revising one
+     * constraint grow to fit the largest one seen and are cleared by the
+     * revision that uses them.
+     */
+    private static class Scratch {
+        // A circular queue of constraint indices; each constraint is in the
+        // queue at most once.
+        int[] queue;
+        boolean[] queued;
+        // The domain sizes of the operands of the constraint being revised.
+        int[] sizesBefore = new int[0];
+        // Per operand flags for AllDiff and MaxCount revisions.
+        boolean[] operandFlags = new boolean[0];
+        // The number of operands fixed to each value, for MaxCount.
+        int[] valueCounts = new int[0];
+        // The intersection of the operands' domains, for AllSame.
+        BitSetDomain common = new BitSetDomain(0);
+
+        /**
+         * @param numConstraints The number of constraints in the model.
+         */
+        Scratch(int numConstraints){
+            queue = new int[numConstraints];
+            queued = new boolean[numConstraints];
+        }
+    }
+
+    /**
+     * @param csp The CSP whose constraints should be enforced; its model
+     *            must already be compiled.
+     */
+    public ArcConsistency(CSP<DomainType> csp){
+        this.csp = csp;
+        this.cardinalityMatching = new CardinalityMatching<DomainType>(csp);
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(csp.constraints.size()));
+    }
+
+    /**
+     * Makes every constraint arc consistent.
+     *
+     * @param state The state to prune; modified in place.
+     * @param trail The trail to record removals on; may be null.
+     * @return False if some unassigned variable was left with an empty domain.
+     */
+    public boolean establish(CSP<DomainType>.CSPState state, Trail trail){
+        int[] all = new int[csp.constraints.size()];
+        for(int c = 0; c < all.length; c++){
+            all[c] = c;
+        }
+        return establish(state, all, trail);
+    }
+
+    /**
+     * Restores arc consistency after a change that only affected the given
+     * constraints (e.g., the ones on a variable that was just assigned).
+     *
+     * @param state The state to prune; modified in place.
+     * @param constraintIndices The constraints to revise first.
+     * @param trail The trail to record removals on; may be null.
+     * @return False if some unassigned variable was left with an empty domain.
+     */
+    public boolean establish(CSP<DomainType>.CSPState state, int[] constraintIndices, Trail trail){
+        ArrayList<Constraint> constraints = csp.constraints;
+        BitSetDomain[] domains = state.getDomains();
+        ArrayList<DomainType> assignments = state.getAssignments();
+
+        Scratch work = scratch.get();
+        int[] queue = work.queue;
+        boolean[] queued = work.queued;
+        int head = 0, size = 0;
+        for(int c : constraintIndices){
+            if(!queued[c]){
+                queued[c] = true;
+                queue[(head + size++) % queue.length] = c;
+            }
+        }
+
+        while(size > 0){
+            int c = queue[head];
+            head = (head + 1) % queue.length;
+            size--;
+            queued[c] = false;
+
+            int[] operands = constraints.get(c).getVariableIndices();
+            if(work.sizesBefore.length < operands.length){
+                work.sizesBefore = new int[operands.length];
+            }
+            int[] sizesBefore = work.sizesBefore;
+            for(int i = 0; i < operands.length; i++){
+                sizesBefore[i] = domains[operands[i]].size();
+            }
+
+            if(!revise(state, c, work, trail)){
+                csp.recordFailure(c);
+                clearQueue(queue, queued, head, size);
+                return false;
+            }
+
+            // Requeue the other constraints on any variable that lost values.
+            for(int i = 0; i < operands.length; i++){
+                int variableIndex = operands[i];
+                if(domains[variableIndex].size() == sizesBefore[i] || assignments.get(variableIndex) != null){
+                    continue;
+                }
+                if(domains[variableIndex].isEmpty()){
+                    csp.recordFailure(c);
+                    clearQueue(queue, queued, head, size);
+                    return false;
+                }
+                for(int other : csp.variableConstraints[variableIndex]){
+                    if(other != c && !queued[other]){
+                        queued[other] = true;
+                        queue[(head + size++) % queue.length] = other;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unmarks the constraints still in the queue when establish stops early,
+     * so the scratch space is clean for the next call.
+     */
+    private static void clearQueue(int[] queue, boolean[] queued, int head, int size){
+        for(int k = 0; k < size; k++){
+            queued[queue[(head + k) % queue.length]] = false;
+        }
+    }
+
+    /**
+     * Prunes the domains of the constraint's unassigned operands until the
+     * constraint is arc consistent.
+     *
+     * @return False if the constraint can't be satisfied.
+     */
+    private boolean revise(CSP<DomainType>.CSPState state, int constraintIndex, Scratch work, Trail trail){
+        Constraint constraint = csp.constraints.get(constraintIndex);
+        if(constraint instanceof AllDiffConstraint){
+            if(csp.useGlobalAllDiff){
+                return cardinalityMatching.propagate(state, constraintIndex, 1, trail);
+            }
+            return reviseAllDiff(state, constraint.getVariableIndices(), work, trail);
+        } else if(constraint instanceof AllSameConstraint){
+            return reviseAllSame(state, constraint.getVariableIndices(), work, trail);
+        } else if(constraint instanceof MaxCountNConstraint){
+            int maxCount = ((MaxCountNConstraint) constraint).getMaxCount();
+            if(csp.useGlobalCardinality){
+                return cardinalityMatching.propagate(state, constraintIndex, maxCount, trail);
+            }
+            return reviseMaxCount(state, constraint.getVariableIndices(), maxCount, work, trail);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the value of each fixed operand from the others, repeating
+     * while that leaves new singleton domains.
+     */
+    private boolean reviseAllDiff(CSP<DomainType>.CSPState state, int[] operands, Scratch work, Trail trail){
+        BitSetDomain[] domains = state.getDomains();
+        boolean[] done = operandFlags(work, operands.length);
+        boolean changed = true;
+        while(changed){
+            changed = false;
+            for(int i = 0; i < operands.length; i++){
+                int valueId = fixedValueId(state, operands[i]);
+                if(done[i] || valueId < 0){
+                    continue;
+                }
+                done[i] = true;
+                for(int j = 0; j < operands.length; j++){
+                    int other = operands[j];
+                    if(j == i || other == operands[i]){
+                        continue;
+                    }
+                    if(state.getAssignments().get(other) != null){
+                        if(fixedValueId(state, other) == valueId){
+                            return false;
+                        }
+                    } else if(valueId < domains[other].capacity() && domains[other].contains(valueId)){
+                        csp.removeValue(state, other, valueId, trail);
+                        if(domains[other].isEmpty()){
+                            return false;
+                        }
+                        changed |= domains[other].size() == 1;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cuts every unassigned operand's domain down to the values all of the
+     * operands could take.
+     */
+    private boolean reviseAllSame(CSP<DomainType>.CSPState state, int[] operands, Scratch work, Trail trail){
+        BitSetDomain[] domains = state.getDomains();
+        int assignedValueId = -1;
+        BitSetDomain common = null;
+        for(int variableIndex : operands){
+            if(state.getAssignments().get(variableIndex) != null){
+                int valueId = fixedValueId(state, variableIndex);
+                if(assignedValueId >= 0 && assignedValueId != valueId){
+                    return false;
+                }
+                assignedValueId = valueId;
+            } else if(common == null){
+                common = work.common;
+                common.setTo(domains[variableIndex]);
+            } else {
+                common.retainAll(domains[variableIndex]);
+            }
+        }
+        if(common == null){
+            return true;
+        }
+        if(assignedValueId >= 0){
+            if(assignedValueId >= common.capacity()){
+                return false;
+            }
+            common.retainOnly(assignedValueId);
+        }
+        if(common.isEmpty()){
+            return false;
+        }
+
+        for(int variableIndex : operands){
+            if(state.getAssignments().get(variableIndex) != null){
+                continue;
+            }
+            BitSetDomain variableDomain = domains[variableIndex];
+            for(int id = variableDomain.next(0); id >= 0; id = variableDomain.next(id+1)){
+                if(!common.contains(id)){
+                    csp.removeValue(state, variableIndex, id, trail);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes a value from the unfixed operands once n operands are fixed
+     * to it, repeating while that leaves new singleton domains.
+     */
+    private boolean reviseMaxCount(CSP<DomainType>.CSPState state, int[] operands, int n, Scratch work, Trail trail){
+        BitSetDomain[] domains = state.getDomains();
+        if(work.valueCounts.length < csp.numValueIds){
+            work.valueCounts = new int[csp.numValueIds];
+        } else {
+            Arrays.fill(work.valueCounts, 0, csp.numValueIds, 0);
+        }
+        int[] fixedCounts = work.valueCounts;
+        boolean[] fixed = operandFlags(work, operands.length);
+        boolean changed = true;
+        while(changed){
+            changed = false;
+            for(int i = 0; i < operands.length; i++){
+                int valueId = fixedValueId(state, operands[i]);
+                if(!fixed[i] && valueId >= 0){
+                    fixed[i] = true;
+                    if(++fixedCounts[valueId] > n){
+                        return false;
+                    }
+                }
+            }
+            for(int i = 0; i < operands.length; i++){
+                int variableIndex = operands[i];
+                if(fixed[i] || state.getAssignments().get(variableIndex) != null){
+                    continue;
+                }
+                BitSetDomain variableDomain = domains[variableIndex];
+                for(int id = variableDomain.next(0); id >= 0; id = variableDomain.next(id+1)){
+                    if(fixedCounts[id] >= n){
+                        csp.removeValue(state, variableIndex, id, trail);
+                    }
+                }
+                if(variableDomain.isEmpty()){
+                    return false;
+                }
+                changed |= variableDomain.size() == 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The scratch space's per operand flags, with at least
+     *         numOperands of them, the first numOperands cleared.
+     */
+    private static boolean[] operandFlags(Scratch work, int numOperands){
+        if(work.operandFlags.length < numOperands){
+            work.operandFlags = new boolean[numOperands];
+        } else {
+            Arrays.fill(work.operandFlags, 0, numOperands, false);
+        }
+        return work.operandFlags;
+    }
+
+    /**
+     * @return The id of the variable's assigned value, or of the only value
+     *         left in its domain; -1 if it has neither.
+     */
+    private int fixedValueId(CSP<DomainType>.CSPState state, int variableIndex){
+        DomainType value = state.getAssignments().get(variableIndex);
+        if(value != null){
+            Integer valueId = csp.valueIndexLookup.get(value);
+            return valueId == null ? -1 : valueId;
+        }
+        BitSetDomain variableDomain = state.getDomains()[variableIndex];
+        return variableDomain.size() == 1 ? variableDomain.next(0) : -1;
+    }
+}
@@ -0,0 +1,592 @@
+package csc460.csps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import csc460.csps.constraints.Constraint;
+import csc460.csps.constraints.MaxCountNConstraint;
+
+/**
+ * Conflict-directed backjumping (CBJ) over a single CSPState, modified in
+ * place and undone from a Trail like TrailSolver. Every level of the search
+ * keeps a conflict set: the earlier levels whose assignments are to blame
+ * for the values that failed at this level. When a level runs out of values,
+ * the search jumps straight back to the deepest level in its conflict set
+ * (handing the rest of the set to that level) instead of to the level just
+ * above it, skipping the assignments in between that had nothing to do with
+ * the failure.
+ *
+ * Blame comes from two places:
+ *     * a value rejected by a constraint check blames the levels of the
+ *       constraint's other assigned operands
+ *     * with forward checking, every value a level prunes from another
+ *       variable's domain is charged to that level (plus, for MaxCount, the
+ *       levels of the operands already holding the value), so a domain
+ *       wipeout, or a variable running out of values, blames the levels
+ *       that pruned it
+ * Removals made while maintaining arc consistency can depend on any earlier
+ * assignment, so with MAC each level is blamed on every level above it and
+ * the search backtracks chronologically.
+ *
+ * Once a solution has been returned, every level on the path is blamed on
+ * all of the levels above it so that looking for further solutions doesn't
+ * jump over any. Nogoods aren't learned from those levels: they would only
+ * rule out the part of the tree already searched, which chronological
+ * backtracking never goes back to anyway.
+ *
+ * Optionally, the solver also learns nogoods: whenever a level runs out of
+ * values, the assignments at the levels in its conflict set can't all be
+ * part of a solution, so they are recorded in a NogoodStore. Later
+ * assignments are checked against the store, which rejects an assignment
+ * that completes a nogood and prunes a value that would complete one. Only
+ * short nogoods are kept: long ones rarely apply again and cost more to
+ * check than they save.
+ *
+ * The search can be cut off after a number of failed assignments and
+ * restarted from the top (see RestartSolver); learned nogoods are kept
+ * across restarts.
+ */
+public class BackjumpingSolver<DomainType> implements RestartableSolver<DomainType> {
+    public static final int DEFAULT_MAX_NOGOOD_LENGTH = 10;
+
+    CSP<DomainType> csp;
+    CSP<DomainType>.CSPState state;
+    Trail trail;
+    int numStatesExpanded;
+    int maxDepth;
+    int numLevelsSkipped;
+    boolean started;
+    long nogoodCapacity;
+    int maxNogoodLength;
+    NogoodStore<DomainType> nogoods;
+    Random random;
+    // The number of failed assignments; the current run is cut off once it
+    // has failLimit of its own (-1 for no limit).
+    long numFailures;
+    long runStartFailures;
+    long failLimit = -1;
+    boolean cutOff;
+    // True if the last call to nextSolution stopped because the thread was
+    // interrupted.
+    boolean interrupted;
+
+    // The search stack; frame i holds the variable assigned at depth i+1.
+    int depth;
+    int[] frameVariables;
+    int[] frameMarks;
+    int[] frameNext;
+    ArrayList<ArrayList<DomainType>> frameValues;
+
+    // Sets of frame indices, as bitsets: conflictSets[i] is frame i's
+    // conflict set, and reasons[i] is the set of frames that together
+    // justify the removals made when frame i's current value was assigned.
+    long[][] conflictSets;
+    long[][] reasons;
+    // prunedBy[v] is the set of frames whose assignment removed values from
+    // variable v's domain.
+    long[][] prunedBy;
+    // The frame each variable is assigned in, or -1 if it isn't (or was
+    // assigned before the search started).
+    int[] levelOf;
+    // Whether a solution was found under each frame's current value (or an
+    // earlier value that was backtracked over to get here).
+    boolean[] aboveSolution;
+
+    /**
+     * Creates a backjumping solver that doesn't learn nogoods.
+     */
+    public BackjumpingSolver(){
+        this(0, DEFAULT_MAX_NOGOOD_LENGTH);
+    }
+
+    /**
+     * Creates a backjumping solver that learns nogoods.
+     *
+     * @param nogoodCapacity The most literals to keep in the nogood store
+     *                       (each takes four bytes); 0 to not learn nogoods.
+     * @param maxNogoodLength The most literals a nogood can have to be kept.
+     */
+    public BackjumpingSolver(long nogoodCapacity, int maxNogoodLength){
+        this.nogoodCapacity = nogoodCapacity;
+        this.maxNogoodLength = maxNogoodLength;
+    }
+
+    /**
+     * Sets up the search to start from a copy of the CSP's start state.
+     *
+     * @param csp The CSP to solve.
+     */
+    @SuppressWarnings("unchecked")
+    public void init(CSP<DomainType> csp){
+        this.csp = csp;
+        this.state = ((CSP<DomainType>.CSPState) csp.getStartState()).clone();
+        this.state.setRandom(random);
+        this.trail = new Trail();
+        int numVariables = state.getAssignments().size();
+        int numWords = Math.max(1, (numVariables + 63) >>> 6);
+        frameVariables = new int[numVariables];
+        frameMarks = new int[numVariables];
+        frameNext = new int[numVariables];
+        frameValues = new ArrayList<ArrayList<DomainType>>();
+        for(int i = 0; i < numVariables; i++){
+            frameValues.add(null);
+        }
+        conflictSets = new long[numVariables][numWords];
+        reasons = new long[numVariables][numWords];
+        prunedBy = new long[numVariables][numWords];
+        levelOf = new int[numVariables];
+        Arrays.fill(levelOf, -1);
+        aboveSolution = new boolean[numVariables];
+        nogoods = nogoodCapacity > 0 ? new NogoodStore<DomainType>(csp, numVariables, nogoodCapacity) : null;
+        depth = 0;
+        numStatesExpanded = 0;
+        maxDepth = 0;
+        numLevelsSkipped = 0;
+        started = false;
+        numFailures = 0;
+        runStartFailures = 0;
+        cutOff = false;
+        interrupted = false;
+    }
+
+    /**
+     * Resumes the search until the next solution is found.
+     *
+     * @return The solved state, or null if there are no more solutions (or
+     *         the run was cut off, see wasCutOff, or the thread was
+     *         interrupted). The returned state is the solver's working
+     *         state; it is only valid until the next call, so clone it if it
+     *         needs to be kept.
+     */
+    public CSP<DomainType>.CSPState nextSolution(){
+        // A run that was cut off or interrupted picks up where it stopped,
+        // rather than after a solution.
+        boolean resuming = cutOff || interrupted;
+        cutOff = false;
+        interrupted = false;
+        if(!started){
+            started = true;
+            numStatesExpanded++;
+            if(csp.isGoal(state)){
+                return state;
+            }
+            expand();
+        } else if(!resuming){
+            blameEveryLevelAbove();
+        }
+
+        while(depth > 0){
+            if(Thread.currentThread().isInterrupted()){
+                interrupted = true;
+                return null;
+            }
+            int top = depth - 1;
+            int variableIndex = frameVariables[top];
+            unwindTo(top);
+
+            // Out of values for this variable; jump back to the deepest
+            // level to blame.
+            if(frameNext[top] < 0){
+                long[] conflicts = conflictSets[top].clone();
+                addReasons(conflicts, prunedBy[variableIndex]);
+                clear(conflicts, top);
+                int culprit = highest(conflicts);
+                if(culprit < 0){
+                    popFramesAbove(-1);
+                    return null;
+                }
+                if(nogoods != null && !aboveSolution[top]){
+                    learnNogood(conflicts);
+                }
+                aboveSolution[culprit] |= aboveSolution[top];
+                clear(conflicts, culprit);
+                or(conflictSets[culprit], conflicts);
+                numLevelsSkipped += top - culprit - 1;
+                popFramesAbove(culprit);
+                continue;
+            }
+
+            DomainType value = frameValues.get(top).get(frameNext[top]--);
+            explainAssignment(top, variableIndex, value);
+            if(!csp.assign(state, variableIndex, value, trail)){
+                blameFailure(top, variableIndex);
+                if(countFailure()){
+                    return null;
+                }
+                continue;
+            }
+            if(nogoods != null && !checkNogoods(top, variableIndex, value)){
+                if(countFailure()){
+                    return null;
+                }
+                continue;
+            }
+            recordPruning(top);
+
+            numStatesExpanded++;
+            maxDepth = Math.max(maxDepth, depth);
+            if(csp.isGoal(state)){
+                return state;
+            }
+            expand();
+        }
+
+        return null;
+    }
+
+    /**
+     * Pushes a frame for the next variable to assign in the current state.
+     * Nothing is pushed if every variable is already assigned.
+     */
+    private void expand(){
+        int variableIndex = csp.selectNextVariableIndex(state);
+        if(variableIndex < 0){
+            return;
+        }
+        ArrayList<DomainType> values = csp.orderValues(state, variableIndex);
+        frameVariables[depth] = variableIndex;
+        frameMarks[depth] = trail.mark();
+        frameNext[depth] = values.size() - 1;
+        frameValues.set(depth, values);
+        Arrays.fill(conflictSets[depth], 0L);
+        aboveSolution[depth] = false;
+        levelOf[variableIndex] = depth;
+        depth++;
+    }
+
+    /**
+     * Counts a failed assignment.
+     *
+     * @return True if the current run has used up its failures and is cut off.
+     */
+    private boolean countFailure(){
+        numFailures++;
+        if(failLimit >= 0 && numFailures - runStartFailures >= failLimit){
+            cutOff = true;
+        }
+        return cutOff;
+    }
+
+    /**
+     * Pops every frame above the given one, undoing their changes.
+     *
+     * @param frame The frame to keep (-1 to pop them all).
+     */
+    private void popFramesAbove(int frame){
+        if(frame + 1 < depth){
+            unwindTo(frame + 1);
+        }
+        while(depth > frame + 1){
+            depth--;
+            levelOf[frameVariables[depth]] = -1;
+            frameValues.set(depth, null);
+        }
+    }
+
+    /**
+     * Undoes every change made at the given frame and deeper, dropping the
+     * pruning those frames are blamed for.
+     */
+    private void unwindTo(int frame){
+        int mark = frameMarks[frame];
+        for(int position = mark; position < trail.mark(); position += Trail.ENTRY_SIZE){
+            if(!trail.isAssignmentAt(position)){
+                clearFrom(prunedBy[trail.getVariableAt(position)], frame);
+            }
+        }
+        trail.undoTo(mark, state);
+    }
+
+    /**
+     * Works out which frames justify the removals that assigning the value
+     * at the given frame will make, before it is assigned.
+     */
+    private void explainAssignment(int frame, int variableIndex, DomainType value){
+        long[] reason = reasons[frame];
+        Arrays.fill(reason, 0L);
+        if(csp.useMaintainingArcConsistency){
+            // Arc consistency can draw on any earlier assignment.
+            for(int level = 0; level <= frame; level++){
+                set(reason, level);
+            }
+            return;
+        }
+        set(reason, frame);
+
+        // MaxCount only prunes a value once enough operands hold it.
+        ArrayList<DomainType> assignments = state.getAssignments();
+        for(int c : csp.getVariableConstraints(variableIndex)){
+            Constraint constraint = csp.constraints.get(c);
+            if(constraint instanceof MaxCountNConstraint){
+                for(int index : constraint.getVariableIndices()){
+                    if(levelOf[index] >= 0 && index != variableIndex && value.equals(assignments.get(index))){
+                        set(reason, levelOf[index]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Charges the pruning done by the assignment at the given frame to the
+     * frames that justify it.
+     */
+    private void recordPruning(int frame){
+        for(int position = frameMarks[frame]; position < trail.mark(); position += Trail.ENTRY_SIZE){
+            if(!trail.isAssignmentAt(position)){
+                set(prunedBy[trail.getVariableAt(position)], frame);
+            }
+        }
+    }
+
+    /**
+     * Adds the frames to blame for a value that was just refused at the given
+     * frame to its conflict set. Must be called before the refused
+     * assignment's changes are undone.
+     */
+    private void blameFailure(int frame, int variableIndex){
+        long[] conflicts = conflictSets[frame];
+        int violated = state.getViolatedConstraint();
+        if(violated >= 0){
+            for(int index : csp.constraints.get(violated).getVariableIndices()){
+                if(index != variableIndex && levelOf[index] >= 0 && levelOf[index] < frame){
+                    set(conflicts, levelOf[index]);
+                }
+            }
+            return;
+        }
+
+        // Propagation wiped out a domain: blame whatever pruned it, including
+        // the frames behind this assignment's own pruning.
+        long[] blame = reasons[frame].clone();
+        ArrayList<DomainType> assignments = state.getAssignments();
+        BitSetDomain[] domains = state.getDomains();
+        for(int position = frameMarks[frame]; position < trail.mark(); position += Trail.ENTRY_SIZE){
+            int index = trail.getVariableAt(position);
+            if(!trail.isAssignmentAt(position) && domains[index].isEmpty() && assignments.get(index) == null){
+                addReasons(blame, prunedBy[index]);
+            }
+        }
+        clear(blame, frame);
+        or(conflicts, blame);
+    }
+
+    /**
+     * Records the assignments at the given frames as a nogood, most recent
+     * first so that they are the ones watched, unless there are too many.
+     */
+    private void learnNogood(long[] frames){
+        int count = 0;
+        for(long word : frames){
+            count += Long.bitCount(word);
+        }
+        if(count > maxNogoodLength){
+            return;
+        }
+        int[] literals = new int[count];
+        for(int frame = nextSetBit(frames, 0); frame >= 0; frame = nextSetBit(frames, frame+1)){
+            int variableIndex = frameVariables[frame];
+            int valueId = csp.valueIndexLookup.get(state.getAssignments().get(variableIndex));
+            literals[--count] = nogoods.literal(variableIndex, valueId);
+        }
+        nogoods.add(literals);
+    }
+
+    /**
+     * Checks the assignment just made at the given frame against the learned
+     * nogoods, pruning the values they rule out.
+     *
+     * @return False if the assignment completes a nogood or the pruning
+     *         wiped out a domain; the frame's conflict set is updated.
+     */
+    private boolean checkNogoods(int frame, int variableIndex, DomainType value){
+        int literal = nogoods.literal(variableIndex, csp.valueIndexLookup.get(value));
+        int violated = nogoods.propagate(state, literal, trail);
+        if(violated >= 0){
+            for(int other : nogoods.getLiterals(violated)){
+                int index = nogoods.variableOf(other);
+                if(index != variableIndex && levelOf[index] >= 0){
+                    set(conflictSets[frame], levelOf[index]);
+                }
+            }
+            return false;
+        }
+
+        // A pruned value is justified by the nogood's other assignments.
+        int[] units = nogoods.getUnits();
+        boolean wipedOut = false;
+        for(int u = 0; u < nogoods.getNumUnits(); u++){
+            for(int other : nogoods.getLiterals(units[u])){
+                int index = nogoods.variableOf(other);
+                if(state.getAssignments().get(index) == null){
+                    wipedOut |= state.getDomains()[index].isEmpty();
+                } else if(levelOf[index] >= 0){
+                    set(reasons[frame], levelOf[index]);
+                }
+            }
+        }
+        if(wipedOut){
+            blameFailure(frame, variableIndex);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Blames every frame on the path on all of the frames above it, so that
+     * backtracking after a solution is chronological.
+     */
+    private void blameEveryLevelAbove(){
+        for(int frame = 0; frame < depth; frame++){
+            aboveSolution[frame] = true;
+            for(int level = 0; level < frame; level++){
+                set(conflictSets[frame], level);
+            }
+        }
+    }
+
+    /**
+     * Adds the reasons of every frame in the given set to the target set.
+     */
+    private void addReasons(long[] target, long[] frames){
+        for(int frame = nextSetBit(frames, 0); frame >= 0; frame = nextSetBit(frames, frame+1)){
+            or(target, reasons[frame]);
+        }
+    }
+
+    /**
+     * @return The number of levels skipped over by jumping back past them.
+     */
+    public int getNumLevelsSkipped(){
+        return numLevelsSkipped;
+    }
+
+    /**
+     * @return The store of learned nogoods, or null if nogoods aren't learned.
+     */
+    public NogoodStore<DomainType> getNogoods(){
+        return nogoods;
+    }
+
+    /**
+     * @param random The source of randomness for breaking ties in variable
+     *               and value ordering, or null to break them
+     *               deterministically. Takes effect at the next init.
+     */
+    public void setRandom(Random random){
+        this.random = random;
+    }
+
+    /**
+     * @param failLimit The number of failed assignments the current run may
+     *                  make from now on before it is cut off; -1 for no limit.
+     */
+    public void setFailLimit(long failLimit){
+        this.failLimit = failLimit;
+        this.runStartFailures = numFailures;
+    }
+
+    /**
+     * @return True if the last call to nextSolution returned null because the
+     *         run was cut off rather than because the search was exhausted.
+     */
+    public boolean wasCutOff(){
+        return cutOff;
+    }
+
+    /**
+     * Undoes every assignment and starts the search over from the top,
+     * keeping the learned nogoods. The counts of states expanded and
+     * failures carry over.
+     */
+    public void restart(){
+        popFramesAbove(-1);
+        trail.undoTo(0, state);
+        started = false;
+        cutOff = false;
+        interrupted = false;
+        runStartFailures = numFailures;
+    }
+
+    /**
+     * @return The number of failed assignments so far, across all runs.
+     */
+    public long getNumFailures(){
+        return numFailures;
+    }
+
+    /**
+     * @return The number of states expanded so far.
+     */
+    @Override
+    public int getNumStatesExpanded() {
+        return numStatesExpanded;
+    }
+
+    /**
+     * @return The deepest level of the search reached so far.
+     */
+    @Override
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // Bitset helpers.
+
+    private static void set(long[] bits, int i){
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private static void clear(long[] bits, int i){
+        bits[i >>> 6] &= ~(1L << i);
+    }
+
+    /**
+     * Clears bit i and every bit above it.
+     */
+    private static void clearFrom(long[] bits, int i){
+        int word = i >>> 6;
+        bits[word] &= (1L << i) - 1;
+        for(word++; word < bits.length; word++){
+            bits[word] = 0L;
+        }
+    }
+
+    private static void or(long[] target, long[] bits){
+        for(int i = 0; i < target.length; i++){
+            target[i] |= bits[i];
+        }
+    }
+
+    /**
+     * @return The highest set bit, or -1 if none are set.
+     */
+    private static int highest(long[] bits){
+        for(int word = bits.length - 1; word >= 0; word--){
+            if(bits[word] != 0){
+                return (word << 6) + 63 - Long.numberOfLeadingZeros(bits[word]);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The lowest set bit at or above from, or -1 if there isn't one.
+     */
+    private static int nextSetBit(long[] bits, int from){
+        int word = from >>> 6;
+        if(word >= bits.length){
+            return -1;
+        }
+        long current = bits[word] & (-1L << from);
+        while(current == 0){
+            if(++word == bits.length){
+                return -1;
+            }
+            current = bits[word];
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(current);
+    }
+}
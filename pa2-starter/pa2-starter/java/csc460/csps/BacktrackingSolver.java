@@ -0,0 +1,118 @@
+package csc460.csps;
+
+import java.util.ArrayList;
+
+/**
+ * Depth first backtracking over CSP.getSuccessorStates without any of the
+ * generic search bookkeeping: there are no SearchNodes, no copies of the
+ * path's actions and coordinates, and no set of ancestor states to check for
+ * cycles (assigning variables can never lead back to an earlier state). That
+ * also means states are never hashed, which for CSPStates means converting
+ * the whole assignment list to a string.
+ * 
+ * The search keeps an explicit stack of successor lists rather than
+ * recursing so that it can pause at a solution and resume from there, and
+ * so that deep searches don't overflow the call stack. Successors are tried
+ * last to first, matching the order in which DFS pops them off its fringe.
+ */
+public class BacktrackingSolver<DomainType> implements CSPSolver<DomainType> {
+    CSP<DomainType> csp;
+    CSP<DomainType>.CSPState startState;
+    int numStatesExpanded;
+    int maxDepth;
+    boolean started;
+
+    // levels.get(i) holds the successors of the state at depth i that are
+    // still waiting to be tried; next[i] is the index of the next one.
+    ArrayList<ArrayList<CSP<DomainType>.CSPState>> levels;
+    int[] next;
+
+    /**
+     * Sets up the search to start from a copy of the CSP's start state.
+     * 
+     * @param csp The CSP to solve.
+     */
+    @SuppressWarnings("unchecked")
+    public void init(CSP<DomainType> csp){
+        this.csp = csp;
+        this.startState = ((CSP<DomainType>.CSPState) csp.getStartState()).clone();
+        this.levels = new ArrayList<ArrayList<CSP<DomainType>.CSPState>>();
+        this.next = new int[startState.getAssignments().size() + 1];
+        numStatesExpanded = 0;
+        maxDepth = 0;
+        started = false;
+    }
+
+    /**
+     * Resumes the search until the next solution is found.
+     * 
+     * @return The solved state, or null if there are no more solutions (or
+     *         the thread was interrupted).
+     */
+    public CSP<DomainType>.CSPState nextSolution(){
+        if(!started){
+            started = true;
+            if(visit(startState)){
+                return startState;
+            }
+        }
+
+        while(!levels.isEmpty()){
+            if(Thread.currentThread().isInterrupted()){
+                return null;
+            }
+            int top = levels.size() - 1;
+
+            // Out of successors at this level; backtrack.
+            if(next[top] < 0){
+                levels.remove(top);
+                continue;
+            }
+
+            CSP<DomainType>.CSPState state = levels.get(top).get(next[top]);
+            levels.get(top).set(next[top]--, null);
+            if(visit(state)){
+                return state;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Expands the given state: checks whether it's a goal and, if not, pushes
+     * its successors onto the stack.
+     * 
+     * @param state The state to expand.
+     * @return True if the state is a goal.
+     */
+    private boolean visit(CSP<DomainType>.CSPState state){
+        numStatesExpanded++;
+        maxDepth = Math.max(maxDepth, levels.size());
+        if(csp.isGoal(state)){
+            return true;
+        }
+        ArrayList<CSP<DomainType>.CSPState> successors = csp.getSuccessorStates(state);
+        if(!successors.isEmpty()){
+            next[levels.size()] = successors.size() - 1;
+            levels.add(successors);
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of states expanded so far.
+     */
+    @Override
+    public int getNumStatesExpanded() {
+        return numStatesExpanded;
+    }
+
+    /**
+     * @return The deepest level of the search reached so far.
+     */
+    @Override
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+}
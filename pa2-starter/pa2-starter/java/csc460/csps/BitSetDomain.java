@@ -0,0 +1,219 @@
+package csc460.csps;
+
+import java.util.Arrays;
+
+/**
+ * A variable's domain stored as a bitset over interned value ids (see
+ * CSP.valueIndexLookup). Bit i is set if the value with id i is still in the
+ * domain. The cardinality is cached so that size and emptiness checks are
+ * constant time.
+ */
+public class BitSetDomain {
+    private long[] words;
+    private int size;
+
+    /**
+     * Creates an empty domain that can hold ids 0 through capacity-1.
+     *
+     * @param capacity The number of values in the full domain.
+     */
+    public BitSetDomain(int capacity){
+        this.words = new long[Math.max(1, (capacity + 63) >>> 6)];
+        this.size = 0;
+    }
+
+    /**
+     * Creates a copy of the given domain.
+     *
+     * @param other The domain to copy.
+     */
+    public BitSetDomain(BitSetDomain other){
+        this.words = other.words.clone();
+        this.size = other.size;
+    }
+
+    /**
+     * @param capacity The number of values in the full domain.
+     * @return A domain holding every id from 0 through capacity-1.
+     */
+    public static BitSetDomain full(int capacity){
+        BitSetDomain domain = new BitSetDomain(capacity);
+        for(int i = 0; i < capacity >>> 6; i++){
+            domain.words[i] = -1L;
+        }
+        if((capacity & 63) != 0){
+            domain.words[capacity >>> 6] = (1L << (capacity & 63)) - 1;
+        }
+        domain.size = capacity;
+        return domain;
+    }
+
+    /**
+     * @param id The value id to look for.
+     * @return True if the value is in the domain.
+     */
+    public boolean contains(int id){
+        return (words[id >>> 6] & (1L << id)) != 0;
+    }
+
+    /**
+     * Adds the value to the domain.
+     *
+     * @param id The value id to add.
+     * @return True if the value was not already in the domain.
+     */
+    public boolean add(int id){
+        long bit = 1L << id;
+        if((words[id >>> 6] & bit) != 0){
+            return false;
+        }
+        words[id >>> 6] |= bit;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes the value from the domain.
+     *
+     * @param id The value id to remove.
+     * @return True if the value was in the domain.
+     */
+    public boolean remove(int id){
+        long bit = 1L << id;
+        if((words[id >>> 6] & bit) == 0){
+            return false;
+        }
+        words[id >>> 6] &= ~bit;
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes every value except the given one. If the value isn't in the
+     * domain, the domain ends up empty.
+     *
+     * @param id The value id to keep.
+     * @return True if any values were removed.
+     */
+    public boolean retainOnly(int id){
+        boolean hadValue = contains(id);
+        int oldSize = size;
+        Arrays.fill(words, 0L);
+        size = 0;
+        if(hadValue){
+            words[id >>> 6] = 1L << id;
+            size = 1;
+        }
+        return size != oldSize;
+    }
+
+    /**
+     * Removes every value that isn't also in the other domain.
+     *
+     * @param other The domain to intersect with; must have the same capacity.
+     * @return True if any values were removed.
+     */
+    public boolean retainAll(BitSetDomain other){
+        int oldSize = size;
+        size = 0;
+        for(int i = 0; i < words.length; i++){
+            words[i] &= other.words[i];
+            size += Long.bitCount(words[i]);
+        }
+        return size != oldSize;
+    }
+
+    /**
+     * @return One more than the largest id this domain can hold.
+     */
+    public int capacity(){
+        return words.length << 6;
+    }
+
+    /**
+     * @return The number of values left in the domain.
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return True if there are no values left in the domain.
+     */
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * Finds the smallest id in the domain that is greater than or equal to
+     * the given id. Use this to walk the domain:
+     *
+     *     for(int id = domain.next(0); id >= 0; id = domain.next(id+1))
+     *
+     * @param from The id to start looking from.
+     * @return The next id in the domain, or -1 if there isn't one.
+     */
+    public int next(int from){
+        int wordIndex = from >>> 6;
+        if(wordIndex >= words.length){
+            return -1;
+        }
+        long word = words[wordIndex] & (-1L << from);
+        while(true){
+            if(word != 0){
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if(++wordIndex == words.length){
+                return -1;
+            }
+            word = words[wordIndex];
+        }
+    }
+
+    /**
+     * @return The ids in the domain, in increasing order.
+     */
+    public int[] toArray(){
+        int[] ids = new int[size];
+        int i = 0;
+        for(int id = next(0); id >= 0; id = next(id+1)){
+            ids[i++] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Makes this domain a copy of the other one, reusing this domain's
+     * space where it's big enough.
+     *
+     * @param other The domain to copy.
+     */
+    public void setTo(BitSetDomain other){
+        if(words.length != other.words.length){
+            words = new long[other.words.length];
+        }
+        System.arraycopy(other.words, 0, words, 0, words.length);
+        size = other.size;
+    }
+
+    /**
+     * @return A deep copy of this domain.
+     */
+    public BitSetDomain copy(){
+        return new BitSetDomain(this);
+    }
+
+    /**
+     * @returns The ids in the domain as a string.
+     */
+    public String toString(){
+        StringBuilder sb = new StringBuilder("{");
+        for(int id = next(0); id >= 0; id = next(id+1)){
+            if(sb.length() > 1){
+                sb.append(", ");
+            }
+            sb.append(id);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -1,8 +1,15 @@
 package csc460.csps;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import csc460.csps.constraints.*;
 import csc460.SearchState;
 import csc460.searchproblems.SearchProblem;
@@ -23,31 +30,432 @@ import csc460.BoardCoordinate;
  * @author Hank Feild
  * @author Bradford Torpey
  */
-public abstract class CSP<DomainType> implements SearchProblem {
+public abstract class CSP<DomainType> implements SearchProblem, Cloneable {
     protected SearchState startState;
     protected ArrayList<String> variables;
     protected ArrayList<DomainType> domain;
     protected ArrayList<Constraint> constraints;
     protected HashMap<String, Integer> variableIndexLookup;
+    protected HashMap<DomainType, Integer> valueIndexLookup;
+    protected int numValueIds;
+    // variableConstraints[i] lists the indices (into constraints) of the
+    // constraints variable i participates in.
+    protected int[][] variableConstraints;
+    // variableConstraintOccurrences[i][k] is the number of times variable i
+    // is listed in constraint variableConstraints[i][k]; null if no variable
+    // is listed twice in the same constraint.
+    protected int[][] variableConstraintOccurrences;
+    // The most constraints any one variable participates in.
+    protected int maxVariableDegree;
+    // When AllSame groups have been merged (see mergeAllSameGroups), the
+    // variables as loaded and the index of each one's representative.
+    protected ArrayList<String> originalVariables;
+    protected int[] representativeOf;
     protected boolean useForwardChecking, useLeastConstrainingValue, useMinimumRemainingValues;
+    protected boolean useIncrementalChecking, useAllSameMerging, useWeightedDegree;
+    protected boolean useArcConsistency, useMaintainingArcConsistency, useGlobalAllDiff, useGlobalCardinality;
+    protected boolean usePresolve, useValueSymmetryBreaking;
+    // The presolve pass run by preprocess, if any.
+    protected Presolver<DomainType> presolver;
+    // When breaking value symmetry, the class of interchangeable values each
+    // value id belongs to (-1 if it isn't interchangeable with any other), as
+    // found by preprocess; null if there are none.
+    protected int[] valueClasses;
+    protected int numValueClasses;
+    protected ArcConsistency<DomainType> arcConsistency;
+    // The failure weight of each constraint for dom/wdeg, kept per thread so
+    // searches running in parallel learn separately.
+    protected ThreadLocal<int[]> constraintWeights;
 
 
     /**
      * Represents a CSP state, which is a list of assignments and domains that
      * correspond to the variable ordering (see the outer CSP class). The value
-     * of unassigned variables is null.
+     * of unassigned variables is null. Domains are bitsets over the value ids
+     * in valueIndexLookup.
+     * 
+     * For incremental checking, the state can also keep a running count per
+     * constraint of how many of its operands are assigned each value (see
+     * initValueCounts). Assignments should then go through assign/unassign
+     * so the counts stay up to date.
+     * 
+     * For minimum remaining values, the state can also keep its unassigned
+     * variables in a bucket queue keyed by domain size and dynamic degree
+     * (see initVariableQueue). Domains should then only be changed through
+     * removeFromDomain/restoreToDomain so the queue stays up to date.
+     * 
+     * For value symmetry breaking, the state can also count how many
+     * variables are assigned each value (see initValueUses).
      */
     public class CSPState extends SearchState {
         private ArrayList<DomainType> assignments;
-        private ArrayList<ArrayList<DomainType>> domains;
+        private BitSetDomain[] domains;
+        private int numUnassigned;
+        // valueCounts[c][v] is the number of constraint c's operands assigned
+        // the value with id v; assignedCounts[c] is the total assigned.
+        private int[][] valueCounts;
+        private int[] assignedCounts;
+        private boolean countsConsistent;
+        // valueUses[v] is the number of variables assigned the value with id v.
+        private int[] valueUses;
+        // The unassigned variables, keyed by variableKey; unassignedOperands[c]
+        // is the number of constraint c's variables that are unassigned and
+        // dynamicDegrees[i] is the number of variable i's constraints that
+        // have another unassigned variable.
+        private VariableQueue variableQueue;
+        private int[] unassignedOperands;
+        private int[] dynamicDegrees;
+        // The constraint that rejected the last failed call to CSP.assign, or
+        // -1 if it failed during propagation instead.
+        private int violatedConstraint;
+        // Breaks ties in variable and value ordering; null to break them by
+        // index and domain order. Copies of the state share it.
+        private Random random;
 
         /**
          * Initializes the state.
          * 
          */
-        public CSPState(ArrayList<DomainType> assignments, ArrayList<ArrayList<DomainType>> domains){
+        public CSPState(ArrayList<DomainType> assignments, BitSetDomain[] domains){
             this.assignments = assignments;
             this.domains = domains;
+            this.numUnassigned = 0;
+            for(DomainType value : assignments){
+                if(value == null){
+                    numUnassigned++;
+                }
+            }
+        }
+
+        /**
+         * Assigns a value to a currently unassigned variable, updating the
+         * running counts.
+         * 
+         * @param variableIndex The index of the variable to assign.
+         * @param value The value to assign.
+         */
+        public void assign(int variableIndex, DomainType value){
+            assignments.set(variableIndex, value);
+            numUnassigned--;
+            if(variableQueue != null){
+                variableQueue.remove(variableIndex);
+                for(int c : variableConstraints[variableIndex]){
+                    // The last unassigned variable left has lost a neighbor.
+                    if(--unassignedOperands[c] == 1){
+                        int other = loneUnassignedOperand(c, variableIndex);
+                        dynamicDegrees[other]--;
+                        variableQueue.update(other, variableKey(other));
+                    }
+                }
+            }
+            if(valueCounts != null){
+                int valueId = valueIndexLookup.get(value);
+                int[] incident = variableConstraints[variableIndex];
+                for(int k = 0; k < incident.length; k++){
+                    int times = occurrences(variableIndex, k);
+                    valueCounts[incident[k]][valueId] += times;
+                    assignedCounts[incident[k]] += times;
+                }
+            }
+            if(valueUses != null){
+                valueUses[valueIndexLookup.get(value)]++;
+            }
+        }
+
+        /**
+         * Clears a variable's assignment, updating the running counts.
+         * 
+         * @param variableIndex The index of the variable to unassign.
+         */
+        public void unassign(int variableIndex){
+            if(valueCounts != null){
+                int valueId = valueIndexLookup.get(assignments.get(variableIndex));
+                int[] incident = variableConstraints[variableIndex];
+                for(int k = 0; k < incident.length; k++){
+                    int times = occurrences(variableIndex, k);
+                    valueCounts[incident[k]][valueId] -= times;
+                    assignedCounts[incident[k]] -= times;
+                }
+            }
+            if(valueUses != null){
+                valueUses[valueIndexLookup.get(assignments.get(variableIndex))]--;
+            }
+            if(variableQueue != null){
+                int degree = 0;
+                for(int c : variableConstraints[variableIndex]){
+                    if(unassignedOperands[c] >= 1){
+                        degree++;
+                        // The only unassigned variable has a neighbor again.
+                        if(unassignedOperands[c] == 1){
+                            int other = loneUnassignedOperand(c, variableIndex);
+                            dynamicDegrees[other]++;
+                            variableQueue.update(other, variableKey(other));
+                        }
+                    }
+                    unassignedOperands[c]++;
+                }
+                dynamicDegrees[variableIndex] = degree;
+            }
+            assignments.set(variableIndex, null);
+            numUnassigned++;
+            if(variableQueue != null){
+                variableQueue.insert(variableIndex, variableKey(variableIndex));
+            }
+        }
+
+        /**
+         * Removes a value from a variable's domain, keeping the variable
+         * queue up to date.
+         * 
+         * @param variableIndex The index of the variable whose domain should shrink.
+         * @param valueId The id of the value to remove.
+         * @return True if the value was in the domain.
+         */
+        public boolean removeFromDomain(int variableIndex, int valueId){
+            if(!domains[variableIndex].remove(valueId)){
+                return false;
+            }
+            if(variableQueue != null){
+                variableQueue.update(variableIndex, variableKey(variableIndex));
+            }
+            return true;
+        }
+
+        /**
+         * Puts a value back in a variable's domain, keeping the variable
+         * queue up to date.
+         * 
+         * @param variableIndex The index of the variable whose domain should grow.
+         * @param valueId The id of the value to restore.
+         */
+        public void restoreToDomain(int variableIndex, int valueId){
+            if(domains[variableIndex].add(valueId) && variableQueue != null){
+                variableQueue.update(variableIndex, variableKey(variableIndex));
+            }
+        }
+
+        /**
+         * Builds the queue of unassigned variables used for minimum
+         * remaining values, if it hasn't been built already.
+         */
+        public void initVariableQueue(){
+            if(variableQueue != null){
+                return;
+            }
+            unassignedOperands = new int[constraints.size()];
+            dynamicDegrees = new int[assignments.size()];
+            for(int i = 0; i < assignments.size(); i++){
+                if(assignments.get(i) == null){
+                    for(int c : variableConstraints[i]){
+                        unassignedOperands[c]++;
+                    }
+                }
+            }
+            variableQueue = new VariableQueue(assignments.size(), (numValueIds + 1) * (maxVariableDegree + 1));
+            for(int i = 0; i < assignments.size(); i++){
+                if(assignments.get(i) == null){
+                    for(int c : variableConstraints[i]){
+                        if(unassignedOperands[c] >= 2){
+                            dynamicDegrees[i]++;
+                        }
+                    }
+                    variableQueue.insert(i, variableKey(i));
+                }
+            }
+        }
+
+        /**
+         * @return An unassigned variable with the fewest values left, breaking
+         *         ties by the most constraints on other unassigned variables;
+         *         -1 if every variable is assigned.
+         */
+        public int peekMinimumRemainingValues(){
+            initVariableQueue();
+            return variableQueue.peekMin(random);
+        }
+
+        /**
+         * @return The unassigned variable with the smallest ratio of domain
+         *         size to weighted degree (the summed failure weights of its
+         *         constraints that have another unassigned variable), with
+         *         ties going to the lowest index (or picked at random if the
+         *         state has a Random); -1 if every variable is assigned.
+         */
+        public int findMinimumDomainOverWeightedDegree(){
+            initVariableQueue();
+            int[] weights = constraintWeights.get();
+            int best = -1;
+            long bestSize = 0, bestWeight = 1;
+            int numTied = 0;
+            for(int i = 0; i < assignments.size(); i++){
+                if(assignments.get(i) != null){
+                    continue;
+                }
+                long weight = 0;
+                for(int c : variableConstraints[i]){
+                    if(unassignedOperands[c] >= 2){
+                        weight += weights[c];
+                    }
+                }
+                // A variable with no live constraints counts as weight 1 so
+                // it is still ordered by its domain size.
+                weight = Math.max(weight, 1);
+                long size = domains[i].size();
+                if(best < 0 || size * bestWeight < bestSize * weight){
+                    best = i;
+                    bestSize = size;
+                    bestWeight = weight;
+                    numTied = 1;
+                } else if(random != null && size * bestWeight == bestSize * weight){
+                    numTied++;
+                    if(random.nextInt(numTied) == 0){
+                        best = i;
+                    }
+                }
+            }
+            return best;
+        }
+
+        /**
+         * @return The variable's key in the queue: smaller domains come
+         *         first, then larger dynamic degrees.
+         */
+        private int variableKey(int variableIndex){
+            return domains[variableIndex].size() * (maxVariableDegree + 1) + (maxVariableDegree - dynamicDegrees[variableIndex]);
+        }
+
+        /**
+         * @return The one unassigned variable in the constraint other than
+         *         the given one.
+         */
+        private int loneUnassignedOperand(int constraintIndex, int variableIndex){
+            for(int index : constraints.get(constraintIndex).getVariableIndices()){
+                if(index != variableIndex && assignments.get(index) == null){
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Builds the running value counts from the current assignments, if
+         * they haven't been built already.
+         */
+        public void initValueCounts(){
+            if(valueCounts != null){
+                return;
+            }
+            valueCounts = new int[constraints.size()][numValueIds];
+            assignedCounts = new int[constraints.size()];
+            for(int i = 0; i < assignments.size(); i++){
+                if(assignments.get(i) != null){
+                    int valueId = valueIndexLookup.get(assignments.get(i));
+                    int[] incident = variableConstraints[i];
+                    for(int k = 0; k < incident.length; k++){
+                        int times = occurrences(i, k);
+                        valueCounts[incident[k]][valueId] += times;
+                        assignedCounts[incident[k]] += times;
+                    }
+                }
+            }
+            countsConsistent = true;
+            for(int c = 0; c < constraints.size(); c++){
+                if(!constraints.get(c).isSatisfied(valueCounts[c], assignedCounts[c])){
+                    countsConsistent = false;
+                }
+            }
+        }
+
+        /**
+         * Counts the variables assigned each value, if they haven't been
+         * counted already.
+         */
+        public void initValueUses(){
+            if(valueUses != null){
+                return;
+            }
+            valueUses = new int[numValueIds];
+            for(DomainType value : assignments){
+                if(value != null){
+                    valueUses[valueIndexLookup.get(value)]++;
+                }
+            }
+        }
+
+        /**
+         * Checks, using the running counts, whether assigning the value to
+         * the variable would violate any constraint it participates in. This
+         * only looks at the variable's constraints and does constant work for
+         * each.
+         * 
+         * @param variableIndex The index of the (unassigned) variable.
+         * @param valueId The id of the value to assign.
+         * @return True if the assignment keeps every constraint satisfied.
+         */
+        public boolean allowsAssignment(int variableIndex, int valueId){
+            return findRejectingConstraint(variableIndex, valueId) < 0;
+        }
+
+        /**
+         * Like allowsAssignment, but reports which constraint the assignment
+         * would violate.
+         * 
+         * @param variableIndex The index of the (unassigned) variable.
+         * @param valueId The id of the value to assign.
+         * @return The index of the first constraint the assignment would
+         *         violate, or -1 if there isn't one.
+         */
+        public int findRejectingConstraint(int variableIndex, int valueId){
+            int[] incident = variableConstraints[variableIndex];
+            for(int k = 0; k < incident.length; k++){
+                int c = incident[k];
+                if(!constraints.get(c).allowsAssignment(valueCounts[c], assignedCounts[c], valueId, occurrences(variableIndex, k))){
+                    return c;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return True if the running counts have been built and the
+         *         assignments satisfy every constraint. Only meaningful when
+         *         every assignment since initValueCounts was checked with
+         *         allowsAssignment.
+         */
+        public boolean isConsistent(){
+            return valueCounts != null && countsConsistent;
+        }
+
+        /**
+         * @return The index of the constraint that rejected the last
+         *         assignment CSP.assign refused, or -1 if it was refused because
+         *         propagation left some variable without values.
+         */
+        public int getViolatedConstraint(){
+            return violatedConstraint;
+        }
+
+        /**
+         * @param random The source of randomness for breaking ties in
+         *               variable and value ordering; null to break them
+         *               deterministically.
+         */
+        public void setRandom(Random random){
+            this.random = random;
+        }
+
+        /**
+         * @return The source of randomness for breaking ties, or null.
+         */
+        public Random getRandom(){
+            return random;
+        }
+
+        /**
+         * @return The number of variables without an assignment.
+         */
+        public int getNumUnassigned(){
+            return numUnassigned;
         }
 
         /**
@@ -60,20 +468,60 @@ public abstract class CSP<DomainType> implements SearchProblem {
         /**
          * @return The current set of variable domains.
          */
-        public ArrayList<ArrayList<DomainType>> getDomains(){
+        public BitSetDomain[] getDomains(){
             return domains;
         }
 
+        /**
+         * @param variableIndex The index of the variable.
+         * @return The values left in the variable's domain, in domain order.
+         */
+        public ArrayList<DomainType> getDomainValues(int variableIndex){
+            ArrayList<DomainType> values = new ArrayList<DomainType>(domains[variableIndex].size());
+            BitSetDomain variableDomain = domains[variableIndex];
+            for(int id = variableDomain.next(0); id >= 0; id = variableDomain.next(id+1)){
+                values.add(domain.get(id));
+            }
+            return values;
+        }
+
         /**
          * @return A deep copy of this state.
          */
         public CSPState clone(){
             ArrayList<DomainType> clonedAssignments = new ArrayList<DomainType>(assignments);
-            ArrayList<ArrayList<DomainType>> clonedDomains = new ArrayList<ArrayList<DomainType>>();
-            for(ArrayList<DomainType> domain : domains){
-                clonedDomains.add(new ArrayList<DomainType>(domain));
+            BitSetDomain[] clonedDomains = new BitSetDomain[domains.length];
+            for(int i = 0; i < domains.length; i++){
+                clonedDomains[i] = domains[i].copy();
+            }
+            CSPState clone = new CSPState(clonedAssignments, clonedDomains, numUnassigned);
+            if(valueCounts != null){
+                clone.valueCounts = new int[valueCounts.length][];
+                for(int c = 0; c < valueCounts.length; c++){
+                    clone.valueCounts[c] = valueCounts[c].clone();
+                }
+                clone.assignedCounts = assignedCounts.clone();
+                clone.countsConsistent = countsConsistent;
             }
-            return new CSPState(clonedAssignments, clonedDomains);
+            if(valueUses != null){
+                clone.valueUses = valueUses.clone();
+            }
+            if(variableQueue != null){
+                clone.variableQueue = variableQueue.copy();
+                clone.unassignedOperands = unassignedOperands.clone();
+                clone.dynamicDegrees = dynamicDegrees.clone();
+            }
+            clone.random = random;
+            return clone;
+        }
+
+        /**
+         * Initializes a copy without recounting the unassigned variables.
+         */
+        private CSPState(ArrayList<DomainType> assignments, BitSetDomain[] domains, int numUnassigned){
+            this.assignments = assignments;
+            this.domains = domains;
+            this.numUnassigned = numUnassigned;
         }
 
         /**
@@ -137,6 +585,8 @@ public abstract class CSP<DomainType> implements SearchProblem {
         this.domain = new ArrayList<DomainType>();
         this.constraints = new ArrayList<Constraint>();
         this.variableIndexLookup = new HashMap<String, Integer>();
+        this.valueIndexLookup = new HashMap<DomainType, Integer>();
+        this.variableConstraints = new int[0][];
         this.useForwardChecking = useForwardChecking;
         this.useLeastConstrainingValue = useLeastConstrainingValue;
         this.useMinimumRemainingValues = useMinimumRemainingValues;
@@ -163,17 +613,625 @@ public abstract class CSP<DomainType> implements SearchProblem {
         this.useForwardChecking = useForwardChecking;
         this.useLeastConstrainingValue = useLeastConstrainingValue;
         this.useMinimumRemainingValues = useMinimumRemainingValues;
-        ArrayList<ArrayList<DomainType>> domains = new ArrayList<ArrayList<DomainType>>();
         ArrayList<DomainType> initialAssignments = new ArrayList<DomainType>();
 
-        // Set each variables list index, domain, and initial assignment (null).
+        // Set each variables list index and initial assignment (null).
         for(int i = 0; i < variables.size(); i++){
             variableIndexLookup.put(variables.get(i), i);
-            domains.add(new ArrayList<DomainType>(domain));
             initialAssignments.add(null);
         }
 
-        startState = new CSPState(initialAssignments, domains);
+        compileModel();
+        startState = buildStartState(initialAssignments);
+    }
+
+    /**
+     * Creates a copy of this CSP that shares the loaded model (the variables,
+     * domain, constraints, compiled indices, and start state) instead of
+     * copying it, but has its own settings, so searches configured
+     * differently can run over one model in parallel. The model is only read
+     * while searching, and everything searches write to (the states and the
+     * dom/wdeg weights) is per search or per thread. The model must not be
+     * reloaded while copies are in use.
+     * 
+     * @return A copy of this CSP whose settings can be changed independently.
+     */
+    @SuppressWarnings("unchecked")
+    public CSP<DomainType> shareModel(){
+        CSP<DomainType> copy;
+        try {
+            copy = (CSP<DomainType>) super.clone();
+        } catch(CloneNotSupportedException e){
+            throw new RuntimeException(e);
+        }
+        // Arc consistency reads its CSP's settings and reports failures to it.
+        if(arcConsistency != null){
+            copy.arcConsistency = new ArcConsistency<DomainType>(copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Uses this CSP's loaded model as a template for a new instance with
+     * different initial assignments, e.g., another Sudoku puzzle on the same
+     * grid. Everything that doesn't change between instances is shared with
+     * the template rather than rebuilt: the variables, the compiled
+     * constraints and incidence lists, and the interned domain values (only
+     * copied if a given value isn't in the domain). The instance only gets
+     * its own start state, dom/wdeg weights, and arc consistency enforcer,
+     * so any number of instances can be made and solved at once, on any
+     * threads, as long as the template itself isn't changed.
+     * 
+     * @param initialAssignments The initial assignments of the variables as
+     *                           loaded, before any AllSame merging (null for
+     *                           unassigned variables).
+     * @return The new instance.
+     * @throws IllegalArgumentException If the number of assignments doesn't
+     *         match the number of variables, or variables in a merged
+     *         AllSame group are given different values.
+     */
+    public CSP<DomainType> instantiate(ArrayList<DomainType> initialAssignments){
+        int numLoaded = representativeOf == null ? variables.size() : representativeOf.length;
+        if(initialAssignments.size() != numLoaded){
+            throw new IllegalArgumentException("Expected initial assignments for "+ numLoaded +
+                " variables, but got "+ initialAssignments.size());
+        }
+        ArrayList<DomainType> assignments;
+        if(representativeOf == null){
+            assignments = new ArrayList<DomainType>(initialAssignments);
+        } else {
+            assignments = new ArrayList<DomainType>(Collections.nCopies(variables.size(), (DomainType) null));
+            for(int i = 0; i < representativeOf.length; i++){
+                DomainType value = initialAssignments.get(i);
+                DomainType groupValue = assignments.get(representativeOf[i]);
+                if(value == null){
+                    continue;
+                } else if(groupValue == null){
+                    assignments.set(representativeOf[i], value);
+                } else if(!groupValue.equals(value)){
+                    throw new IllegalArgumentException("Variables merged into "+ variables.get(representativeOf[i]) +
+                        " are given different values");
+                }
+            }
+        }
+
+        CSP<DomainType> instance = shareModel();
+        instance.constraintWeights = newConstraintWeights();
+        // Which values are interchangeable depends on the givens.
+        instance.valueClasses = null;
+        instance.numValueClasses = 0;
+        for(DomainType value : assignments){
+            if(value != null && !instance.valueIndexLookup.containsKey(value)){
+                if(instance.valueIndexLookup == valueIndexLookup){
+                    instance.valueIndexLookup = new HashMap<DomainType, Integer>(valueIndexLookup);
+                }
+                instance.valueIndexLookup.put(value, instance.numValueIds++);
+            }
+        }
+        BitSetDomain[] domains = new BitSetDomain[variables.size()];
+        for(int i = 0; i < domains.length; i++){
+            domains[i] = BitSetDomain.full(domain.size());
+        }
+        instance.startState = instance.new CSPState(assignments, domains);
+        return instance;
+    }
+
+    /**
+     * @param useForwardChecking Set to true to use forward checking on successors.
+     */
+    public void setUseForwardChecking(boolean useForwardChecking){
+        this.useForwardChecking = useForwardChecking;
+    }
+
+    /**
+     * @param useLeastConstrainingValue Set to true to use the least constraining value for domain value selection.
+     */
+    public void setUseLeastConstrainingValue(boolean useLeastConstrainingValue){
+        this.useLeastConstrainingValue = useLeastConstrainingValue;
+    }
+
+    /**
+     * @param useMinimumRemainingValues Set to true to use minimum remaining values for variable selection.
+     */
+    public void setUseMinimumRemainingValues(boolean useMinimumRemainingValues){
+        this.useMinimumRemainingValues = useMinimumRemainingValues;
+    }
+
+    /**
+     * Sets whether assignments are checked incrementally: each state keeps
+     * running per-constraint value counts, so checking an assignment only
+     * costs constant work per constraint on the assigned variable, and a
+     * complete assignment is known to be a goal without rechecking every
+     * constraint.
+     * 
+     * @param useIncrementalChecking Set to true to check assignments incrementally.
+     */
+    public void setUseIncrementalChecking(boolean useIncrementalChecking){
+        this.useIncrementalChecking = useIncrementalChecking;
+    }
+
+    /**
+     * Sets whether arc consistency is established over the whole constraint
+     * network before searching (see preprocess).
+     * 
+     * @param useArcConsistency Set to true to run AC-3 on the start state.
+     */
+    public void setUseArcConsistency(boolean useArcConsistency){
+        this.useArcConsistency = useArcConsistency;
+    }
+
+    /**
+     * Sets whether arc consistency is maintained during search (MAC): after
+     * each assignment, AC-3 is run starting from the assigned variable's
+     * constraints. This takes the place of forward checking and also turns
+     * on the arc consistency pass before searching.
+     * 
+     * @param useMaintainingArcConsistency Set to true to maintain arc consistency.
+     */
+    public void setUseMaintainingArcConsistency(boolean useMaintainingArcConsistency){
+        this.useMaintainingArcConsistency = useMaintainingArcConsistency;
+        if(useMaintainingArcConsistency){
+            this.useArcConsistency = true;
+        }
+    }
+
+    /**
+     * Sets whether arc consistency uses the matching-based AllDiff propagator
+     * (see CardinalityMatching), which removes every value that can't be part of
+     * a complete matching instead of just the values of fixed operands. This
+     * only has an effect when arc consistency is used.
+     * 
+     * @param useGlobalAllDiff Set to true to use the global AllDiff propagator.
+     */
+    public void setUseGlobalAllDiff(boolean useGlobalAllDiff){
+        this.useGlobalAllDiff = useGlobalAllDiff;
+    }
+
+    /**
+     * Sets whether arc consistency uses the flow-based cardinality propagator
+     * for MaxCount constraints (see CardinalityMatching), which also detects
+     * when the unassigned operands can't all be covered by values that still
+     * have room. This only has an effect when arc consistency is used.
+     * 
+     * @param useGlobalCardinality Set to true to use the global cardinality propagator.
+     */
+    public void setUseGlobalCardinality(boolean useGlobalCardinality){
+        this.useGlobalCardinality = useGlobalCardinality;
+    }
+
+    /**
+     * Sets whether the variables in each AllSame group are merged into one
+     * variable when the problem is loaded (see mergeAllSameGroups). This has
+     * to be set before loading.
+     * 
+     * @param useAllSameMerging Set to true to merge AllSame groups.
+     */
+    public void setUseAllSameMerging(boolean useAllSameMerging){
+        this.useAllSameMerging = useAllSameMerging;
+    }
+
+    /**
+     * Sets whether variables are picked by dom/wdeg: the smallest ratio of
+     * domain size to the summed failure weights of the variable's live
+     * constraints. A constraint's weight starts at 1 and goes up each time it
+     * rejects an assignment or wipes out a domain during propagation, so the
+     * search focuses on the hardest part of the problem. This takes the place
+     * of minimum remaining values.
+     * 
+     * @param useWeightedDegree Set to true to use dom/wdeg.
+     */
+    public void setUseWeightedDegree(boolean useWeightedDegree){
+        this.useWeightedDegree = useWeightedDegree;
+    }
+
+    /**
+     * Sets whether the model is presolved before searching (see Presolver):
+     * the givens are fixed and propagated, and constraints that can't rule
+     * anything out are dropped.
+     * 
+     * @param usePresolve Set to true to presolve in preprocess.
+     */
+    public void setUsePresolve(boolean usePresolve){
+        this.usePresolve = usePresolve;
+    }
+
+    /**
+     * Sets whether the search skips values that are interchangeable with one
+     * it has already tried (see findInterchangeableValues). Two values are
+     * interchangeable when swapping them everywhere turns every solution into
+     * another solution; since AllDiff, AllSame, and MaxCount treat all values
+     * alike, that holds for any two values that no given uses and that are in
+     * the same variables' domains. When a variable is assigned, only one of
+     * the interchangeable values that no variable holds yet is tried, as the
+     * rest would only lead to the same subtree with the values renamed. This
+     * works with any variable and value ordering and can cut the search by up
+     * to a factor of the number of interchangeable values factorial on
+     * unsatisfiable problems. Searching for every solution then finds one per
+     * renaming: e.g., of the schedules that only differ by which of two
+     * interchangeable people work which shifts, just one is found.
+     * 
+     * The classes are found by preprocess, which has to be called for this
+     * to take effect.
+     * 
+     * @param useValueSymmetryBreaking Set to true to break value symmetry.
+     */
+    public void setUseValueSymmetryBreaking(boolean useValueSymmetryBreaking){
+        this.useValueSymmetryBreaking = useValueSymmetryBreaking;
+    }
+
+    /**
+     * @return The classes of interchangeable values preprocess found, each in
+     *         domain order; empty if value symmetry isn't being broken or no
+     *         two values are interchangeable.
+     */
+    public ArrayList<ArrayList<DomainType>> getInterchangeableValues(){
+        ArrayList<ArrayList<DomainType>> classes = new ArrayList<ArrayList<DomainType>>();
+        for(int c = 0; c < numValueClasses; c++){
+            classes.add(new ArrayList<DomainType>());
+        }
+        for(int id = 0; valueClasses != null && id < valueClasses.length; id++){
+            if(valueClasses[id] >= 0){
+                classes.get(valueClasses[id]).add(domain.get(id));
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * @return The presolve pass that preprocess ran, e.g., for its report;
+     *         null if it didn't run one.
+     */
+    public Presolver<DomainType> getPresolver(){
+        return presolver;
+    }
+
+    /**
+     * Bumps a constraint's failure weight when dom/wdeg is in use. Called
+     * whenever the constraint rejects an assignment or wipes out a domain.
+     * 
+     * @param constraintIndex The index of the constraint that failed.
+     */
+    protected void recordFailure(int constraintIndex){
+        if(useWeightedDegree){
+            constraintWeights.get()[constraintIndex]++;
+        }
+    }
+
+    /**
+     * Prepares the start state for searching once the problem has been
+     * loaded: presolving and then establishing arc consistency, if they're
+     * enabled, and finally finding the interchangeable values if value
+     * symmetry is to be broken. Call this after loadBoardFile and before
+     * starting a search.
+     * 
+     * @return False if the problem was found to have no solution.
+     */
+    public boolean preprocess(){
+        if(usePresolve){
+            presolver = new Presolver<DomainType>(this);
+            if(!presolver.presolve()){
+                return false;
+            }
+        }
+        if(useArcConsistency && !getArcConsistency().establish((CSPState) startState, null)){
+            return false;
+        }
+        valueClasses = null;
+        numValueClasses = 0;
+        if(useValueSymmetryBreaking){
+            findInterchangeableValues();
+        }
+        return true;
+    }
+
+    /**
+     * Groups the domain values that are interchangeable in the start state
+     * into classes (see setUseValueSymmetryBreaking), filling in valueClasses
+     * and numValueClasses. A value is left out if it's given to a variable,
+     * and values are only grouped if they're in exactly the same unassigned
+     * variables' domains, so pruning that singled a value out (e.g., a cell
+     * presolving fixed) keeps it apart. Any other type of constraint might
+     * tell values apart, so if there is one, no values are grouped.
+     */
+    protected void findInterchangeableValues(){
+        for(Constraint constraint : constraints){
+            if(!(constraint instanceof AllDiffConstraint || constraint instanceof AllSameConstraint ||
+                 constraint instanceof MaxCountNConstraint)){
+                return;
+            }
+        }
+        CSPState state = (CSPState) startState;
+        ArrayList<DomainType> assignments = state.getAssignments();
+        BitSetDomain[] domains = state.getDomains();
+        boolean[] given = new boolean[numValueIds];
+        for(DomainType value : assignments){
+            if(value != null){
+                given[valueIndexLookup.get(value)] = true;
+            }
+        }
+
+        // Key each value by the variables whose domains hold it.
+        int[] classes = new int[numValueIds];
+        Arrays.fill(classes, -1);
+        int[] classSizes = new int[domain.size()];
+        HashMap<BitSet, Integer> classOf = new HashMap<BitSet, Integer>();
+        for(int id = 0; id < domain.size(); id++){
+            // Skip given values and repeats of a value earlier in the domain.
+            if(given[id] || valueIndexLookup.get(domain.get(id)) != id){
+                continue;
+            }
+            BitSet holders = new BitSet(assignments.size());
+            for(int i = 0; i < assignments.size(); i++){
+                if(assignments.get(i) == null && domains[i].contains(id)){
+                    holders.set(i);
+                }
+            }
+            Integer c = classOf.putIfAbsent(holders, classOf.size());
+            classes[id] = c == null ? classOf.size() - 1 : c;
+            classSizes[classes[id]]++;
+        }
+
+        // Only values with another value to swap with are in a class.
+        int[] renumbered = new int[classOf.size()];
+        int numClasses = 0;
+        for(int c = 0; c < renumbered.length; c++){
+            renumbered[c] = classSizes[c] > 1 ? numClasses++ : -1;
+        }
+        for(int id = 0; id < classes.length; id++){
+            if(classes[id] >= 0){
+                classes[id] = renumbered[classes[id]];
+            }
+        }
+        if(numClasses > 0){
+            valueClasses = classes;
+            numValueClasses = numClasses;
+        }
+    }
+
+    /**
+     * @return The arc consistency enforcer for this CSP's model.
+     */
+    protected ArcConsistency<DomainType> getArcConsistency(){
+        return arcConsistency;
+    }
+
+    /**
+     * Builds the start state from the initial assignments, interning the
+     * domain values (and any initial values that aren't in the domain) and
+     * giving each variable a full domain. This should be called once the
+     * variables, domain, and constraints have been loaded and compiled.
+     * 
+     * @param initialAssignments The initial assignments (null for unassigned variables).
+     * @return The start state.
+     */
+    protected CSPState buildStartState(ArrayList<DomainType> initialAssignments){
+        BitSetDomain[] domains = buildInitialDomains();
+        for(DomainType value : initialAssignments){
+            if(value != null && !valueIndexLookup.containsKey(value)){
+                valueIndexLookup.put(value, numValueIds++);
+            }
+        }
+        return new CSPState(initialAssignments, domains);
+    }
+
+    /**
+     * Merges each group of variables tied together by AllSame constraints
+     * (directly or through a chain of them) into a single representative
+     * variable, so the search branches once per group instead of once per
+     * member. Groups are found with union-find over the AllSame constraints,
+     * which are then dropped; the other constraints are rewritten onto the
+     * representatives by pointing every member's name at its
+     * representative's index, so a constraint may end up listing a
+     * representative more than once. All variables start with the same
+     * domain, so intersecting a group's domains comes down to combining the
+     * members' initial assignments. If two members are given different
+     * values the problem has no solution, and it is left unmerged for the
+     * search to report that.
+     * 
+     * This should be called once the variables and constraints have been
+     * loaded and before the model is compiled. Solutions are expanded back
+     * to the loaded variables by getAssignmentsAsString and expandAssignments.
+     * 
+     * @param initialAssignments The initial assignments of the loaded variables.
+     * @return The initial assignments of the variables after merging.
+     */
+    protected ArrayList<DomainType> mergeAllSameGroups(ArrayList<DomainType> initialAssignments){
+        int numVariables = variables.size();
+        int[] parent = new int[numVariables];
+        for(int i = 0; i < numVariables; i++){
+            parent[i] = i;
+        }
+
+        ArrayList<Constraint> remaining = new ArrayList<Constraint>();
+        for(Constraint constraint : constraints){
+            if(!(constraint instanceof AllSameConstraint)){
+                remaining.add(constraint);
+                continue;
+            }
+            int first = -1;
+            for(Object variable : constraint.variables){
+                Integer index = variableIndexLookup.get(variable);
+                if(index == null){
+                    continue;
+                }
+                if(first < 0){
+                    first = findRoot(parent, index);
+                } else {
+                    parent[findRoot(parent, index)] = first;
+                }
+            }
+        }
+        if(remaining.size() == constraints.size()){
+            return initialAssignments;
+        }
+
+        // Number the groups in order of their first member, and combine the
+        // members' initial assignments.
+        int[] groupIndex = new int[numVariables];
+        Arrays.fill(groupIndex, -1);
+        int[] merged = new int[numVariables];
+        ArrayList<String> representatives = new ArrayList<String>();
+        ArrayList<DomainType> mergedAssignments = new ArrayList<DomainType>();
+        for(int i = 0; i < numVariables; i++){
+            int root = findRoot(parent, i);
+            if(groupIndex[root] < 0){
+                groupIndex[root] = representatives.size();
+                representatives.add(variables.get(i));
+                mergedAssignments.add(null);
+            }
+            int representative = groupIndex[root];
+            merged[i] = representative;
+            DomainType value = initialAssignments.get(i);
+            if(value != null){
+                DomainType groupValue = mergedAssignments.get(representative);
+                if(groupValue == null){
+                    mergedAssignments.set(representative, value);
+                } else if(!groupValue.equals(value)){
+                    return initialAssignments;
+                }
+            }
+        }
+
+        originalVariables = variables;
+        representativeOf = merged;
+        variables = representatives;
+        constraints = remaining;
+        for(int i = 0; i < numVariables; i++){
+            variableIndexLookup.put(originalVariables.get(i), merged[i]);
+        }
+        return mergedAssignments;
+    }
+
+    /**
+     * Finds the root of an element's set in a union-find forest, halving the
+     * path along the way.
+     * 
+     * @param parent Each element's parent (roots are their own parent).
+     * @param element The element to look up.
+     * @return The root of the element's set.
+     */
+    private static int findRoot(int[] parent, int element){
+        while(parent[element] != element){
+            parent[element] = parent[parent[element]];
+            element = parent[element];
+        }
+        return element;
+    }
+
+    /**
+     * Resolves each constraint's operands to variable indices (unless they
+     * already have been) and builds the reverse index from each variable to
+     * the constraints it participates in, so that checking and propagating an
+     * assignment only needs to look at the constraints incident to that
+     * variable. This should be called once the variables and constraints have
+     * been loaded.
+     */
+    protected void compileModel(){
+        int[] degree = new int[variables.size()];
+        for(Constraint constraint : constraints){
+            // Constraints loaded from a binary model arrive compiled.
+            if(constraint.getVariableIndices() == null){
+                constraint.compile(variableIndexLookup);
+            }
+            for(int index : constraint.getVariableIndices()){
+                degree[index]++;
+            }
+        }
+
+        variableConstraints = new int[variables.size()][];
+        variableConstraintOccurrences = new int[variables.size()][];
+        for(int i = 0; i < degree.length; i++){
+            variableConstraints[i] = new int[degree[i]];
+            variableConstraintOccurrences[i] = new int[degree[i]];
+            degree[i] = 0;
+        }
+        boolean hasRepeats = false;
+        for(int c = 0; c < constraints.size(); c++){
+            for(int index : constraints.get(c).getVariableIndices()){
+                // A variable listed twice in one constraint is only indexed
+                // once, with its number of occurrences.
+                if(degree[index] == 0 || variableConstraints[index][degree[index]-1] != c){
+                    variableConstraintOccurrences[index][degree[index]] = 1;
+                    variableConstraints[index][degree[index]++] = c;
+                } else {
+                    variableConstraintOccurrences[index][degree[index]-1]++;
+                    hasRepeats = true;
+                }
+            }
+        }
+        for(int i = 0; i < degree.length; i++){
+            if(degree[i] < variableConstraints[i].length){
+                variableConstraints[i] = Arrays.copyOf(variableConstraints[i], degree[i]);
+                variableConstraintOccurrences[i] = Arrays.copyOf(variableConstraintOccurrences[i], degree[i]);
+            }
+        }
+        if(!hasRepeats){
+            variableConstraintOccurrences = null;
+        }
+        maxVariableDegree = 0;
+        for(int[] incident : variableConstraints){
+            maxVariableDegree = Math.max(maxVariableDegree, incident.length);
+        }
+        arcConsistency = new ArcConsistency<DomainType>(this);
+        constraintWeights = newConstraintWeights();
+    }
+
+    /**
+     * @return Fresh dom/wdeg weights for the constraints, starting at 1 on
+     *         each thread.
+     */
+    private ThreadLocal<int[]> newConstraintWeights(){
+        int numConstraints = constraints.size();
+        return ThreadLocal.withInitial(() -> {
+            int[] weights = new int[numConstraints];
+            Arrays.fill(weights, 1);
+            return weights;
+        });
+    }
+
+    /**
+     * @param variableIndex A variable's list index.
+     * @return The indices of the constraints the variable participates in.
+     */
+    public int[] getVariableConstraints(int variableIndex){
+        return variableConstraints[variableIndex];
+    }
+
+    /**
+     * @param variableIndex A variable's list index.
+     * @param k A position in the variable's constraint list (see getVariableConstraints).
+     * @return The number of times the variable is listed as an operand of
+     *         that constraint.
+     */
+    protected int occurrences(int variableIndex, int k){
+        return variableConstraintOccurrences == null ? 1 : variableConstraintOccurrences[variableIndex][k];
+    }
+
+    /**
+     * @return The constraints that define the problem.
+     */
+    public ArrayList<Constraint> getConstraints(){
+        return constraints;
+    }
+
+    /**
+     * Interns the domain values to dense ids (their position in the domain
+     * list) and creates a full domain for each variable.
+     *
+     * @return A full domain for every variable.
+     */
+    protected BitSetDomain[] buildInitialDomains(){
+        valueIndexLookup = new HashMap<DomainType, Integer>();
+        for(int i = 0; i < domain.size(); i++){
+            valueIndexLookup.putIfAbsent(domain.get(i), i);
+        }
+        numValueIds = domain.size();
+
+        BitSetDomain[] domains = new BitSetDomain[variables.size()];
+        for(int i = 0; i < domains.length; i++){
+            domains[i] = BitSetDomain.full(domain.size());
+        }
+        return domains;
     }
 
     /**
@@ -186,13 +1244,22 @@ public abstract class CSP<DomainType> implements SearchProblem {
      */
     @Override
     public Iterable<SearchState> getSuccessors(SearchState state) {
-        CSPState currentState = (CSPState) state;
-        ArrayList<SearchState> successors = new ArrayList<SearchState>();
+        return new ArrayList<SearchState>(getSuccessorStates((CSPState) state));
+    }
+
+    /**
+     * The CSPState-typed version of getSuccessors, for solvers that don't go
+     * through the generic search algorithms.
+     * 
+     * @param currentState The state to find successors of.
+     * @return The successor states, in the order given by orderValues.
+     */
+    public ArrayList<CSPState> getSuccessorStates(CSPState currentState) {
+        ArrayList<CSPState> successors = new ArrayList<CSPState>();
 
-        ArrayList<DomainType> assignments = currentState.getAssignments();
         // If there are no missing assignments, there are no successors, so 
         // stop here.
-        if(assignments.indexOf(null) < 0){
+        if(currentState.getNumUnassigned() == 0){
             return successors;
         }
 
@@ -204,22 +1271,7 @@ public abstract class CSP<DomainType> implements SearchProblem {
         // successors.
         for(DomainType value : orderValues(currentState, variableIndex)){
             CSPState successorState = currentState.clone();
-            successorState.getAssignments().set(variableIndex, value);
-            if(constraintsSatisfied(successorState.getAssignments())){
-                if(useForwardChecking){ // Forward checking
-                    successorState = forwardCheck(successorState, variableIndex, value); // Update successor state with forward checking
-                    boolean hasEmptyDomain = false; 
-                    for(DomainType domainValue : successorState.getDomains().get(variableIndex)){ // Check if any domain is empty
-                        if(domainValue == null){ // If domain is empty, break and continue to next successor
-                            hasEmptyDomain = true;
-                            break;
-                        }
-                    }
-                    if(hasEmptyDomain){ // If domain is empty, continue to next successor
-                        continue;
-                    }
-                }
-
+            if(assign(successorState, variableIndex, value, null)){
                 successors.add(successorState); // Add successor to list of successors
             }
         }
@@ -227,27 +1279,75 @@ public abstract class CSP<DomainType> implements SearchProblem {
     }
 
     /**
-     * Selects the next value to assign to the variable at the given index. If useMinimumRemainingValues
-     * is set to true for this CSP, the value with the fewest remaining values in the domain is selected.
-     * Otherwise, the first unassigned variable is returned.
+     * Assigns the value to the variable in place, checks the constraints, and
+     * (if enabled) forward checks or maintains arc consistency on the other
+     * variables' domains. This is the
+     * step shared by getSuccessors, which applies it to a fresh clone, and
+     * in-place solvers like TrailSolver, which pass a trail so the changes
+     * can be undone when backtracking.
+     *
+     * @param state The state to modify; the variable must be unassigned.
+     * @param variableIndex The index of the variable to assign.
+     * @param value The value to assign to the variable.
+     * @param trail The trail to record changes on; may be null if the changes
+     *              never need to be undone.
+     * @return True if the assignment is consistent with the constraints and
+     *         forward checking left every unassigned variable with at least
+     *         one value. The state may be partially updated when this is
+     *         false, and records which constraint was violated, if any (see
+     *         CSPState.getViolatedConstraint).
+     */
+    public boolean assign(CSPState state, int variableIndex, DomainType value, Trail trail){
+        state.violatedConstraint = -1;
+        if(useIncrementalChecking){
+            state.initValueCounts();
+            int violated = state.findRejectingConstraint(variableIndex, valueIndexLookup.get(value));
+            if(violated >= 0){
+                state.violatedConstraint = violated;
+                recordFailure(violated);
+                return false;
+            }
+        }
+        state.assign(variableIndex, value);
+        if(trail != null){
+            trail.recordAssignment(variableIndex);
+        }
+        if(!useIncrementalChecking){
+            int violated = findViolatedConstraint(state.getAssignments(), variableIndex);
+            if(violated >= 0){
+                state.violatedConstraint = violated;
+                recordFailure(violated);
+                return false;
+            }
+        }
+        if(useMaintainingArcConsistency){ // Maintaining arc consistency
+            return getArcConsistency().establish(state, variableConstraints[variableIndex], trail);
+        }
+        if(useForwardChecking){ // Forward checking
+            return propagate(state, variableIndex, value, trail); // Update state with forward checking; a wiped out domain is a dead end
+        }
+        return true;
+    }
+
+    /**
+     * Selects the next value to assign to the variable at the given index. If useWeightedDegree is set,
+     * the variable with the smallest domain size over weighted degree is selected. If useMinimumRemainingValues
+     * is set to true for this CSP, the value with the fewest remaining values in the domain is selected,
+     * with ties going to the variable in the most constraints with other unassigned variables; this is
+     * read off the state's variable queue rather than by scanning every domain. Otherwise, the first
+     * unassigned variable is returned. Under either heuristic, if the state has a Random, remaining ties
+     * are broken at random.
      * 
      * @param state The current state of the CSP.
      * 
      * @return The index of the next variable to assign a value to.
      */
     public int selectNextVariableIndex(CSPState state){
+        if (useWeightedDegree) { // dom/wdeg
+            return state.findMinimumDomainOverWeightedDegree();
+        }
         if (useMinimumRemainingValues) { // Minimum remaining values
-            int minRemainingValues = Integer.MAX_VALUE; // Initialize minRemainingValues to maximum value (2^31 - 1)
-            int minRemainingValuesIndex = -1; // Initialize minRemainingValuesIndex to -1
-            ArrayList<ArrayList<DomainType>> domains = state.getDomains(); // Get the domains from state
-            for (int i = 0; i < domains.size(); i++) { // For each domain
-                ArrayList<DomainType> domain = domains.get(i);
-                if (state.getAssignments().get(i) == null && domain.size() < minRemainingValues) { // If the variable is unassigned and the domain size is less than minRemainingValues
-                    minRemainingValues = domain.size(); // Update minRemainingValues
-                    minRemainingValuesIndex = i; 
-                }
-            }
-            return minRemainingValuesIndex; // Return the index of the variable with the minimum remaining values
+            return state.peekMinimumRemainingValues();
         }
         return state.getAssignments().indexOf(null); 
     }
@@ -255,43 +1355,162 @@ public abstract class CSP<DomainType> implements SearchProblem {
     /**
      * Returns an ordering of the values in the domain of the specified variable. If useLeastConstrainingValue
      * is set to true, the values are ordered by the number of values that would be eliminated from the domains
-     * of other unassigned variables if the value were assigned to the variable at the given index. Otherwise, 
-     * the initial ordering of the domain is returned.
+     * of other unassigned variables if the value were assigned to the variable at the given index (ties keep
+     * their domain order). Otherwise, the initial ordering of the domain is returned. If the state has a
+     * Random, ties (or, without LCV, all values) are put in random order instead.
      * 
      * @param state The current state of the CSP.
      * @param variableIndex The index of the variable to order the values of.
      * @return An ordered list of the values in the domain of the variable at the given index.
      */
     public ArrayList<DomainType> orderValues(CSPState state, int variableIndex){
+        Random random = state.getRandom();
         if(useLeastConstrainingValue){ // Least constraining value
-            ArrayList<DomainType> domain = state.getDomains().get(variableIndex); // Get the domain of the variable at the given index
-            ArrayList<Integer> removalCounts = new ArrayList<>(); // Initialize removalCounts to store # of values eliminated from domains of other unassigned variables
-            for (DomainType value : domain) { // For each value in the domain
-                int count = 0; // Reset count to 0
-                for (int i = 0; i < state.getDomains().size(); i++) { 
-                    if (i != variableIndex) { // If the index is not the variable index
-                        CSPState newState = forwardCheck(state, variableIndex, value); // Get the new state with the value assigned to the variable at the given index
-                        if (newState.getDomains().get(i).size() < state.getDomains().get(i).size()) { // If the domain size is less than the original domain size
-                            count++; // Increment count
-                        }
-                    }
+            int[] valueIds = state.getDomains()[variableIndex].toArray();
+            if(random != null){
+                // Shuffle first so the stable sort leaves ties in random order.
+                for(int i = valueIds.length - 1; i > 0; i--){
+                    int j = random.nextInt(i + 1);
+                    int id = valueIds[i];
+                    valueIds[i] = valueIds[j];
+                    valueIds[j] = id;
+                }
+            }
+            int[] scores = new int[valueIds.length];
+            int[] removesValue = new int[variables.size()];
+            int[] removesOthers = new int[variables.size()];
+            int[] touched = new int[variables.size()];
+            for(int i = 0; i < valueIds.length; i++){
+                scores[i] = countEliminated(state, variableIndex, valueIds[i], i + 1, removesValue, removesOthers, touched);
+            }
+
+            // Stable insertion sort of the ids by score; domains are small.
+            for(int i = 1; i < valueIds.length; i++){
+                int id = valueIds[i], score = scores[i];
+                int j = i - 1;
+                while(j >= 0 && scores[j] > score){
+                    valueIds[j+1] = valueIds[j];
+                    scores[j+1] = scores[j];
+                    j--;
+                }
+                valueIds[j+1] = id;
+                scores[j+1] = score;
+            }
+
+            ArrayList<DomainType> orderedValues = new ArrayList<DomainType>(valueIds.length);
+            for(int id : valueIds){
+                orderedValues.add(domain.get(id));
+            }
+            return breakValueSymmetry(state, orderedValues);
+        }
+        ArrayList<DomainType> values = state.getDomainValues(variableIndex);
+        if(random != null){
+            Collections.shuffle(values, random);
+        }
+        return breakValueSymmetry(state, values);
+    }
+
+    /**
+     * Drops the values that are interchangeable with an earlier one in the
+     * list that no variable has been assigned yet: assigning any of them
+     * would lead to the same subtree as that value, with the two swapped (see
+     * setUseValueSymmetryBreaking). Values that some variable already holds
+     * are kept, since assigning them isn't symmetric to anything else.
+     * 
+     * @param state The current state of the CSP.
+     * @param values The values to try, in order.
+     * @return The values to try, in the same order, without the
+     *         interchangeable ones; the list itself if there are none.
+     */
+    private ArrayList<DomainType> breakValueSymmetry(CSPState state, ArrayList<DomainType> values){
+        if(valueClasses == null){
+            return values;
+        }
+        state.initValueUses();
+        boolean[] classTried = new boolean[numValueClasses];
+        ArrayList<DomainType> keptValues = new ArrayList<DomainType>(values.size());
+        for(DomainType value : values){
+            int id = valueIndexLookup.get(value);
+            int c = valueClasses[id];
+            if(c >= 0 && state.valueUses[id] == 0){
+                if(classTried[c]){
+                    continue;
+                }
+                classTried[c] = true;
+            }
+            keptValues.add(value);
+        }
+        return keptValues;
+    }
+
+    /**
+     * Counts the values forward checking would remove from the domains of
+     * unassigned variables if the variable were assigned the value, without
+     * making the assignment. Each removal is counted once, even if several
+     * constraints would make it. The variables that lose a value are marked
+     * in the scratch arrays with the given stamp, which must be different on
+     * every call that shares them.
+     *
+     * @param state The current state of the CSP.
+     * @param variableIndex The index of the (unassigned) variable.
+     * @param valueId The id of the value it would be assigned.
+     * @param stamp A positive number unique to this call.
+     * @param removesValue Scratch, one per variable: set to stamp when the value would be removed.
+     * @param removesOthers Scratch, one per variable: set to stamp when every other value would be removed.
+     * @param touched Scratch, one per variable: the variables that were marked.
+     * @return The number of values that would be removed.
+     */
+    private int countEliminated(CSPState state, int variableIndex, int valueId, int stamp,
+                                int[] removesValue, int[] removesOthers, int[] touched){
+        BitSetDomain[] domains = state.getDomains();
+        ArrayList<DomainType> assignments = state.getAssignments();
+        int numTouched = 0;
+        int[] incident = variableConstraints[variableIndex];
+        for(int k = 0; k < incident.length; k++){
+            Constraint constraint = constraints.get(incident[k]);
+            boolean removesFromOperands;
+            if(constraint instanceof AllDiffConstraint){
+                removesFromOperands = true;
+            } else if(constraint instanceof MaxCountNConstraint){
+                // The value is used up once this assignment reaches the cap.
+                int maxCount = ((MaxCountNConstraint) constraint).getMaxCount();
+                removesFromOperands = countAssigned(state, incident[k], valueId) + occurrences(variableIndex, k) >= maxCount;
+            } else if(constraint instanceof AllSameConstraint){
+                removesFromOperands = false;
+            } else {
+                continue;
+            }
+
+            for(int index : constraint.getVariableIndices()){
+                if(index == variableIndex || assignments.get(index) != null){
+                    continue;
+                }
+                if(removesValue[index] != stamp && removesOthers[index] != stamp){
+                    touched[numTouched++] = index;
+                }
+                if(removesFromOperands){
+                    removesValue[index] = stamp;
+                } else {
+                    removesOthers[index] = stamp;
                 }
-                removalCounts.add(count); // Add count to removalCounts
             }
-            // This section of code below was in part produced by ChatGPT to help me correctly sort the orderedValues list 
-            // I had initially been unsure of how to use Collections.sort() and ChatGPT was able to help me understand how to use it correctly
-            ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-            ArrayList<DomainType> orderedValues = new ArrayList<>(domain); // Initialize orderedValues to a copy of the domain
-            orderedValues.sort((v1, v2) -> { // Sort orderedValues by the # of values eliminated from domains of other unassigned variables
-                int index1 = domain.indexOf(v1); 
-                int index2 = domain.indexOf(v2);
-                return Integer.compare(removalCounts.get(index1), removalCounts.get(index2)); // Compare the # of values eliminated from the domains of other unassigned variables
-            });
-            return orderedValues; // Return orderedValues
-            ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
         }
-        return state.getDomains().get(variableIndex);
-    } 
+
+        int count = 0;
+        for(int t = 0; t < numTouched; t++){
+            int index = touched[t];
+            BitSetDomain variableDomain = domains[index];
+            boolean hasValue = valueId < variableDomain.capacity() && variableDomain.contains(valueId);
+            if(removesValue[index] == stamp && hasValue){
+                count++;
+            }
+            if(removesOthers[index] == stamp){
+                count += variableDomain.size() - (hasValue ? 1 : 0);
+            }
+        }
+        return count;
+    }
+
     /**
      * Returns a new state with the given variable assigned the given value, and the domains of the other variables updated.
      *
@@ -305,60 +1524,127 @@ public abstract class CSP<DomainType> implements SearchProblem {
     public CSPState forwardCheck(CSPState state, int variableIndex, DomainType value) {
         // Deep copy.
         CSPState newState = state.clone();
-        newState.getAssignments().set(variableIndex, value);
+        newState.assign(variableIndex, value);
+        propagate(newState, variableIndex, value, null);
+        return newState;
+    }
 
+    /**
+     * Removes values made inconsistent by the variable's assignment from the
+     * domains of the variables it shares a constraint with. The state is
+     * modified in place. Propagation stops at the first constraint that
+     * leaves one of its unassigned operands without values, so a dead end is
+     * found without scanning every domain.
+     *
+     * @param state The state to update; the variable should already be assigned the value.
+     * @param variableIndex The index of the variable that was assigned.
+     * @param value The value that was assigned.
+     * @param trail The trail to record domain removals on; may be null.
+     * @return False if an unassigned variable's domain was wiped out.
+     */
+    public boolean propagate(CSPState state, int variableIndex, DomainType value, Trail trail) {
         // Convenience references
-        ArrayList<DomainType> assignments = newState.getAssignments();
-        ArrayList<ArrayList<DomainType>> domains = newState.getDomains();
+        BitSetDomain[] domains = state.getDomains();
+        Integer valueId = valueIndexLookup.get(value);
+        if (valueId == null || valueId >= domain.size()) { // Values outside of the domain can't be pruned from anything
+            return true;
+        }
 
         // This section of code below was produced by Github Copilot, and further modifications were made by me to ensure that the method was correctly implemented
         // I was unsure of how to correctly implement forward checking on some of the constraint types, and Github Copilot was able to help me understand how to implement it
         ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-        for (Constraint constraint : constraints) { // Iterate through constraints
-            ArrayList<Integer> variableIndices = new ArrayList<>(); // Initialize variableIndices 
-            for (Object variable : constraint.variables) { // For each variable in the constraint
-                String variableString = (String) variable;
-                Integer index = variableIndexLookup.get(variableString); // Get the index of the variable
-                if (index != null) { // If the index is not null
-                    variableIndices.add(index); // Add the index to variableIndices
-                }
-            }
+        for (int c : variableConstraints[variableIndex]) { // Iterate through the constraints on the variable
+            Constraint constraint = constraints.get(c);
+            int[] variableIndices = constraint.getVariableIndices();
 
-            if (variableIndices.contains(variableIndex)) { // If variableIndices contains the variable index
-                if (constraint instanceof AllDiffConstraint) { // AllDiffConstraint
-                    for (int index : variableIndices) { // For each index in variableIndices
-                        if (index != variableIndex) { // If the index is not the variable index
-                            ArrayList<DomainType> domain = domains.get(index); 
-                            domain.remove(value); // Remove the value from the domain
-                        }
+            if (constraint instanceof AllDiffConstraint) { // AllDiffConstraint
+                for (int index : variableIndices) { // For each index in variableIndices
+                    if (index != variableIndex) { // If the index is not the variable index
+                        removeValue(state, index, valueId, trail); // Remove the value from the domain
                     }
-                } else if (constraint instanceof AllSameConstraint) { // AllSameConstraint
-                    for (int index : variableIndices) { // For each index in variableIndices
-                        if (index != variableIndex) { // If the index is not the variable index
-                            ArrayList<DomainType> domain = domains.get(index);
-                            domain.retainAll(Collections.singletonList(value)); // Retain only the value in the domain
+                }
+            } else if (constraint instanceof AllSameConstraint) { // AllSameConstraint
+                for (int index : variableIndices) { // For each index in variableIndices
+                    if (index != variableIndex) { // If the index is not the variable index
+                        BitSetDomain domain = domains[index];
+                        for (int id = domain.next(0); id >= 0; id = domain.next(id+1)) { // Retain only the value in the domain
+                            if (id != valueId) {
+                                removeValue(state, index, id, trail);
+                            }
                         }
                     }
-                } else if (constraint instanceof MaxCountNConstraint) { // MaxCountNConstraint
-                    MaxCountNConstraint maxCountConstraint = (MaxCountNConstraint) constraint; // Cast constraint to MaxCountNConstraint
-                    int maxCount = maxCountConstraint.getMaxCount(); // Get the max count
-                    int count = 0; // Initialize count to 0
+                }
+            } else if (constraint instanceof MaxCountNConstraint) { // MaxCountNConstraint
+                MaxCountNConstraint maxCountConstraint = (MaxCountNConstraint) constraint; // Cast constraint to MaxCountNConstraint
+                int maxCount = maxCountConstraint.getMaxCount(); // Get the max count
+                int count = countAssigned(state, c, valueId); // Number of operands (including this one) assigned the value
+                if (count >= maxCount) { // If the value has used up its count, the remaining operands can't take it
                     for (int index : variableIndices) { // For each index in variableIndices
-                        if (index != variableIndex) { // If the index is not the variable index
-                            ArrayList<DomainType> domain = domains.get(index);
-                            if (domain.contains(value)) { // If the domain contains the value
-                                count++;
-                                if (count > maxCount) { // If the count is greater than the max count
-                                    domain.remove(value); // Remove the value from the domain
-                                }
-                            }
+                        if (state.getAssignments().get(index) == null) { // If the variable is unassigned
+                            removeValue(state, index, valueId, trail); // Remove the value from the domain
                         }
                     }
                 }
             }
+            if (wipesOutOperand(state, variableIndices)) { // A dead end; charge the constraint for it
+                recordFailure(c);
+                return false;
+            }
         }
         ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-        return newState;
+        return true;
+    }
+
+    /**
+     * @param state The state to look at.
+     * @param variableIndices The variables to check.
+     * @return True if one of the variables is unassigned and has no values left.
+     */
+    private boolean wipesOutOperand(CSPState state, int[] variableIndices){
+        for(int index : variableIndices){
+            if(state.getDomains()[index].isEmpty() && state.getAssignments().get(index) == null){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts how many of a constraint's operands are assigned a value, using
+     * the state's running counts when it has them.
+     * 
+     * @param state The state to look at.
+     * @param constraintIndex The index of the constraint.
+     * @param valueId The id of the value to count.
+     * @return The number of assigned operands with the value.
+     */
+    protected int countAssigned(CSPState state, int constraintIndex, int valueId){
+        if(state.valueCounts != null){
+            return state.valueCounts[constraintIndex][valueId];
+        }
+        int count = 0;
+        DomainType value = domain.get(valueId);
+        for(int index : constraints.get(constraintIndex).getVariableIndices()){
+            if(value.equals(state.getAssignments().get(index))){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes a value from a variable's domain, recording the removal on the
+     * trail (if there is one) so it can be undone.
+     *
+     * @param state The state whose domains should be updated.
+     * @param variableIndex The index of the variable whose domain should shrink.
+     * @param valueId The id of the value to remove.
+     * @param trail The trail to record the removal on; may be null.
+     */
+    protected void removeValue(CSPState state, int variableIndex, int valueId, Trail trail){
+        if(state.removeFromDomain(variableIndex, valueId) && trail != null){
+            trail.recordRemoval(variableIndex, valueId);
+        }
     }
 
 
@@ -369,21 +1655,58 @@ public abstract class CSP<DomainType> implements SearchProblem {
      */
     public boolean constraintsSatisfied(ArrayList<DomainType> assignments){
         for(Constraint constraint : constraints){
-            if(!constraint.isSatisfied(variableIndexLookup, assignments)){
+            if(!constraint.isSatisfied(assignments)){
                 return false;
             }
         }
         return true;
     }
 
+    /**
+     * Checks only the constraints the given variable participates in. If the
+     * assignments were consistent before the variable was assigned, this is
+     * enough to tell whether they still are.
+     * 
+     * @param assignments The current set of variable assignments.
+     * @param variableIndex The index of the variable that was just assigned.
+     * @return True if every constraint on the variable is satisfied.
+     */
+    public boolean constraintsSatisfied(ArrayList<DomainType> assignments, int variableIndex){
+        return findViolatedConstraint(assignments, variableIndex) < 0;
+    }
+
+    /**
+     * Like constraintsSatisfied, but reports which of the variable's
+     * constraints is violated.
+     * 
+     * @param assignments The current set of variable assignments.
+     * @param variableIndex The index of the variable that was just assigned.
+     * @return The index of the first violated constraint, or -1 if there isn't one.
+     */
+    protected int findViolatedConstraint(ArrayList<DomainType> assignments, int variableIndex){
+        for(int c : variableConstraints[variableIndex]){
+            if(!constraints.get(c).isSatisfied(assignments)){
+                return c;
+            }
+        }
+        return -1;
+    }
+
     /**
      * @param state The state to test.
      * @return True if the agent has reached the exit.
      */
     @Override
     public boolean isGoal(SearchState state) {
-        ArrayList<DomainType> assignments = ((CSPState) state).getAssignments();
-        return assignments.indexOf(null) < 0 && constraintsSatisfied(assignments);
+        CSPState cspState = (CSPState) state;
+        if(cspState.getNumUnassigned() > 0){
+            return false;
+        }
+        if(useIncrementalChecking){
+            cspState.initValueCounts();
+            return cspState.isConsistent();
+        }
+        return constraintsSatisfied(cspState.getAssignments());
     }
 
     /**
@@ -392,10 +1715,11 @@ public abstract class CSP<DomainType> implements SearchProblem {
      *         \t[variable]\t[value]
      */
     public String getAssignmentsAsString(SearchState state){
-        ArrayList<DomainType> assignments = ((CSPState) state).getAssignments();
+        ArrayList<DomainType> assignments = expandAssignments(((CSPState) state).getAssignments());
+        ArrayList<String> names = originalVariables == null ? variables : originalVariables;
         StringBuilder sb = new StringBuilder();
-        for(int i = 0; i < variables.size(); i++){
-            sb.append('\t').append(variables.get(i))
+        for(int i = 0; i < names.size(); i++){
+            sb.append('\t').append(names.get(i))
               .append('\t').append(assignments.get(i))
               .append('\n');
         }
@@ -403,6 +1727,81 @@ public abstract class CSP<DomainType> implements SearchProblem {
         return sb.toString();
     }
 
+    /**
+     * Maps assignments to the searched variables back onto the variables as
+     * they were loaded, giving each member of a merged AllSame group its
+     * representative's value.
+     * 
+     * @param assignments Assignments indexed like the searched variables.
+     * @return Assignments indexed like the loaded variables; the given list
+     *         itself if no groups were merged.
+     */
+    public ArrayList<DomainType> expandAssignments(ArrayList<DomainType> assignments){
+        if(representativeOf == null){
+            return assignments;
+        }
+        ArrayList<DomainType> expanded = new ArrayList<DomainType>(representativeOf.length);
+        for(int representative : representativeOf){
+            expanded.add(assignments.get(representative));
+        }
+        return expanded;
+    }
+
+    /**
+     * @return The names of the variables as loaded, in the order solutions
+     *         from solutions() list their values.
+     */
+    public ArrayList<String> getVariableNames(){
+        return originalVariables == null ? variables : originalVariables;
+    }
+
+    /**
+     * Returns the solutions as a lazy iterator that searches with a
+     * TrailSolver. See solutions(CSPSolver).
+     * 
+     * @return An iterator over the solutions' assignments.
+     */
+    public SolutionIterator<DomainType> solutions(){
+        return solutions(new TrailSolver<DomainType>());
+    }
+
+    /**
+     * Returns the solutions as a lazy iterator: the search only runs when the
+     * next solution is asked for, and stops where it is when no more are, so
+     * taking the first few solutions of a large problem only costs as much as
+     * finding those. Each solution is a new list of values indexed like
+     * getVariableNames. The problem should be loaded and preprocessed first.
+     * 
+     * @param solver The solver to search with; it is initialized on the first call to hasNext.
+     * @return An iterator over the solutions' assignments.
+     */
+    public SolutionIterator<DomainType> solutions(CSPSolver<DomainType> solver){
+        return new SolutionIterator<DomainType>(this, solver);
+    }
+
+    /**
+     * @return A lazy, sequential stream of the solutions found by a
+     *         TrailSolver; see solutions(CSPSolver).
+     */
+    public Stream<ArrayList<DomainType>> solutionStream(){
+        return solutionStream(new TrailSolver<DomainType>());
+    }
+
+    /**
+     * Returns the solutions as a lazy, sequential stream backed by
+     * solutions(solver), so operations like limit and findFirst stop the
+     * search as soon as they have what they need. If the consuming thread is
+     * interrupted, the stream throws a CancellationException instead of
+     * ending (see SolutionIterator).
+     * 
+     * @param solver The solver to search with.
+     * @return A stream of the solutions' assignments.
+     */
+    public Stream<ArrayList<DomainType>> solutionStream(CSPSolver<DomainType> solver){
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(solutions(solver),
+            Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
     /**
      * Unused.
      */
@@ -0,0 +1,14 @@
+package csc460.csps;
+
+/**
+ * A simple interface for CSP solvers that work on CSPStates directly rather
+ * than through the generic SearchAlgorithm/SearchNode machinery. Solvers
+ * stop and return null from nextSolution if their thread is interrupted, so
+ * searches running in parallel can be cancelled.
+ */
+public interface CSPSolver<DomainType> {
+    public void init(CSP<DomainType> csp);
+    public CSP<DomainType>.CSPState nextSolution();
+    public int getNumStatesExpanded();
+    public int getMaxDepth();
+}
@@ -0,0 +1,357 @@
+package csc460.csps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A generalized arc consistency propagator for constraints that cap how many
+ * operands may take each value: AllDiff (every value at most once, Regin's
+ * algorithm) and MaxCount n (every value at most n times, the upper bound
+ * half of a global cardinality constraint).
+ *
+ * The operands and the values in their domains form a bipartite graph, and
+ * the constraint can be satisfied exactly when there is a matching that
+ * covers every operand without using any value more than its capacity
+ * allows (a maximum flow). A value can stay in an operand's domain only if
+ * the edge between them is in some such matching, which is the case when it
+ * is in the current matching, lies on an alternating path that starts at a
+ * value with spare capacity, or both ends are in the same strongly connected
+ * component of the graph with matching edges pointing from operands to
+ * values and all other edges pointing from values to operands.
+ *
+ * For AllDiff this catches more than removing assigned values from peers: a
+ * pair of operands that can only be {1, 2} removes 1 and 2 from the rest
+ * (naked subsets), a value only one operand can take is forced onto it
+ * (hidden singles), and more operands than values is detected right away.
+ * For MaxCount it detects when the remaining operands can't be covered by
+ * the values that still have room.
+ *
+ * The matching found for each constraint is kept and used as the starting
+ * point the next time that constraint is propagated, so usually only the
+ * operands whose matched value was pruned need to be re-matched. Any
+ * matching is a valid starting point, so nothing needs to be undone when
+ * backtracking. Matchings are kept per thread so one instance can be shared
+ * by searches running in parallel.
+ */
+public class CardinalityMatching<DomainType> {
+    CSP<DomainType> csp;
+    ThreadLocal<int[][]> matchings;
+
+    /**
+     * @param csp The CSP whose constraints will be propagated; its model must
+     *            already be compiled.
+     */
+    public CardinalityMatching(CSP<DomainType> csp){
+        this.csp = csp;
+        this.matchings = ThreadLocal.withInitial(() -> new int[csp.constraints.size()][]);
+    }
+
+    /**
+     * Removes every value that can't be part of a solution to the constraint
+     * from its unassigned operands' domains.
+     *
+     * @param state The state to prune; modified in place.
+     * @param constraintIndex The index of the constraint.
+     * @param capacity The most operands that may share a value (1 for AllDiff).
+     * @param trail The trail to record removals on; may be null.
+     * @return False if the constraint can't be satisfied.
+     */
+    public boolean propagate(CSP<DomainType>.CSPState state, int constraintIndex, int capacity, Trail trail){
+        int[] operands = csp.constraints.get(constraintIndex).getVariableIndices();
+        BitSetDomain[] domains = state.getDomains();
+        Graph graph = new Graph(state, operands, capacity);
+        int numOperands = graph.numOperands;
+        int numValues = graph.numValues;
+
+        // Start from the previous matching, dropping edges that are gone.
+        int[][] cache = matchings.get();
+        int[] hint = cache[constraintIndex];
+        if(hint == null || hint.length != numOperands){
+            hint = new int[numOperands];
+            Arrays.fill(hint, -1);
+            cache[constraintIndex] = hint;
+        }
+        for(int i = 0; i < numOperands; i++){
+            int v = hint[i];
+            if(v >= 0 && v < numValues && graph.load[v] < capacity && graph.hasValue(i, v)){
+                graph.operandMatch[i] = v;
+                graph.load[v]++;
+            }
+        }
+
+        // Match the rest with augmenting paths.
+        for(int i = 0; i < numOperands; i++){
+            if(graph.operandMatch[i] < 0 && !graph.augment(i)){
+                hint[i] = -1;
+                return false;
+            }
+        }
+        System.arraycopy(graph.operandMatch, 0, hint, 0, numOperands);
+
+        // Nodes 0..numOperands-1 are operands; numOperands+v is value v.
+        // Values reachable from a value with spare capacity sit on an even
+        // alternating path.
+        int[] operandMatch = graph.operandMatch;
+        boolean[] reachable = new boolean[numValues];
+        boolean[] operandReached = new boolean[numOperands];
+        int[] queue = new int[numOperands + numValues];
+        int head = 0, tail = 0;
+        for(int v = 0; v < numValues; v++){
+            if(graph.load[v] < capacity && graph.adjacencyStart[v+1] > graph.adjacencyStart[v]){
+                reachable[v] = true;
+                queue[tail++] = numOperands + v;
+            }
+        }
+        while(head < tail){
+            int node = queue[head++];
+            if(node < numOperands){
+                int v = operandMatch[node];
+                if(!reachable[v]){
+                    reachable[v] = true;
+                    queue[tail++] = numOperands + v;
+                }
+            } else {
+                int v = node - numOperands;
+                for(int e = graph.adjacencyStart[v]; e < graph.adjacencyStart[v+1]; e++){
+                    int i = graph.adjacency[e];
+                    if(operandMatch[i] != v && !operandReached[i]){
+                        operandReached[i] = true;
+                        queue[tail++] = i;
+                    }
+                }
+            }
+        }
+
+        int[] component = graph.stronglyConnectedComponents();
+
+        // Remove the edges that can't be in any maximum matching.
+        for(int i = 0; i < numOperands; i++){
+            if(graph.fixed[i] >= 0){
+                continue;
+            }
+            int variableIndex = operands[i];
+            BitSetDomain domain = domains[variableIndex];
+            for(int v = domain.next(0); v >= 0; v = domain.next(v+1)){
+                if(v != operandMatch[i] && !reachable[v] && component[i] != component[numOperands + v]){
+                    csp.removeValue(state, variableIndex, v, trail);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The bipartite operand/value graph for one propagation, along with the
+     * matching being built on it.
+     */
+    private class Graph {
+        int numOperands, numValues, capacity;
+        int[] operands;
+        BitSetDomain[] domains;
+        // The value each assigned operand is fixed to (-1 if unassigned).
+        int[] fixed;
+        // Each value's adjacent operands, in compressed rows.
+        int[] adjacencyStart, adjacency;
+        int[] operandMatch, load;
+        int[] visitedStamp;
+        int stamp;
+
+        Graph(CSP<DomainType>.CSPState state, int[] operands, int capacity){
+            ArrayList<DomainType> assignments = state.getAssignments();
+            this.operands = operands;
+            this.domains = state.getDomains();
+            this.capacity = capacity;
+            numOperands = operands.length;
+            numValues = csp.numValueIds;
+
+            fixed = new int[numOperands];
+            for(int i = 0; i < numOperands; i++){
+                DomainType value = assignments.get(operands[i]);
+                fixed[i] = value == null ? -1 : csp.valueIndexLookup.get(value);
+            }
+
+            adjacencyStart = new int[numValues + 1];
+            for(int i = 0; i < numOperands; i++){
+                if(fixed[i] >= 0){
+                    adjacencyStart[fixed[i] + 1]++;
+                } else {
+                    BitSetDomain domain = domains[operands[i]];
+                    for(int v = domain.next(0); v >= 0; v = domain.next(v+1)){
+                        adjacencyStart[v + 1]++;
+                    }
+                }
+            }
+            for(int v = 0; v < numValues; v++){
+                adjacencyStart[v + 1] += adjacencyStart[v];
+            }
+            adjacency = new int[adjacencyStart[numValues]];
+            int[] fill = adjacencyStart.clone();
+            for(int i = 0; i < numOperands; i++){
+                if(fixed[i] >= 0){
+                    adjacency[fill[fixed[i]]++] = i;
+                } else {
+                    BitSetDomain domain = domains[operands[i]];
+                    for(int v = domain.next(0); v >= 0; v = domain.next(v+1)){
+                        adjacency[fill[v]++] = i;
+                    }
+                }
+            }
+
+            operandMatch = new int[numOperands];
+            Arrays.fill(operandMatch, -1);
+            load = new int[numValues];
+            visitedStamp = new int[numValues];
+            stamp = 0;
+        }
+
+        /**
+         * @return True if operand i can take value v.
+         */
+        boolean hasValue(int i, int v){
+            if(fixed[i] >= 0){
+                return fixed[i] == v;
+            }
+            BitSetDomain domain = domains[operands[i]];
+            return v < domain.capacity() && domain.contains(v);
+        }
+
+        /**
+         * Looks for an augmenting path from the unmatched operand i (Kuhn's
+         * algorithm), shifting the matching along it if one is found.
+         *
+         * @return True if operand i is now matched.
+         */
+        boolean augment(int i){
+            stamp++;
+            return findPath(i);
+        }
+
+        private boolean findPath(int i){
+            if(fixed[i] >= 0){
+                return tryValue(i, fixed[i]);
+            }
+            BitSetDomain domain = domains[operands[i]];
+            for(int v = domain.next(0); v >= 0; v = domain.next(v+1)){
+                if(tryValue(i, v)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Tries to match operand i with value v, moving one of v's current
+         * operands elsewhere if v is full.
+         */
+        private boolean tryValue(int i, int v){
+            if(visitedStamp[v] == stamp){
+                return false;
+            }
+            visitedStamp[v] = stamp;
+            if(load[v] < capacity){
+                operandMatch[i] = v;
+                load[v]++;
+                return true;
+            }
+            for(int e = adjacencyStart[v]; e < adjacencyStart[v+1]; e++){
+                int j = adjacency[e];
+                if(j != i && operandMatch[j] == v){
+                    // j gives up v if it can be matched somewhere else.
+                    operandMatch[j] = -1;
+                    load[v]--;
+                    if(findPath(j)){
+                        operandMatch[i] = v;
+                        load[v]++;
+                        return true;
+                    }
+                    operandMatch[j] = v;
+                    load[v]++;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Finds the strongly connected components of the matching graph using
+         * an iterative version of Tarjan's algorithm. Operand i has a single
+         * edge to its matched value; value v has an edge to every other
+         * operand that has v in its domain.
+         *
+         * @return The component id of each node (operands first, then values).
+         */
+        int[] stronglyConnectedComponents(){
+            int numNodes = numOperands + numValues;
+            int[] index = new int[numNodes];
+            int[] lowLink = new int[numNodes];
+            int[] component = new int[numNodes];
+            boolean[] onStack = new boolean[numNodes];
+            int[] stack = new int[numNodes];
+            int stackSize = 0;
+            int[] callNode = new int[numNodes];
+            int[] callEdge = new int[numNodes];
+            int nextIndex = 1, numComponents = 0;
+
+            for(int root = 0; root < numNodes; root++){
+                if(index[root] != 0){
+                    continue;
+                }
+                int depth = 0;
+                callNode[0] = root;
+                callEdge[0] = 0;
+                index[root] = lowLink[root] = nextIndex++;
+                stack[stackSize++] = root;
+                onStack[root] = true;
+
+                while(depth >= 0){
+                    int node = callNode[depth];
+                    int next = -1;
+                    // Find the node's next unexplored successor.
+                    if(node < numOperands){
+                        if(callEdge[depth]++ == 0){
+                            next = numOperands + operandMatch[node];
+                        }
+                    } else {
+                        int v = node - numOperands;
+                        while(next < 0 && adjacencyStart[v] + callEdge[depth] < adjacencyStart[v+1]){
+                            int i = adjacency[adjacencyStart[v] + callEdge[depth]++];
+                            if(operandMatch[i] != v){
+                                next = i;
+                            }
+                        }
+                    }
+
+                    if(next >= 0){
+                        if(index[next] == 0){
+                            index[next] = lowLink[next] = nextIndex++;
+                            stack[stackSize++] = next;
+                            onStack[next] = true;
+                            depth++;
+                            callNode[depth] = next;
+                            callEdge[depth] = 0;
+                        } else if(onStack[next]){
+                            lowLink[node] = Math.min(lowLink[node], index[next]);
+                        }
+                        continue;
+                    }
+
+                    // All successors done; pop the component if node is its root.
+                    if(lowLink[node] == index[node]){
+                        int member;
+                        do {
+                            member = stack[--stackSize];
+                            onStack[member] = false;
+                            component[member] = numComponents;
+                        } while(member != node);
+                        numComponents++;
+                    }
+                    depth--;
+                    if(depth >= 0){
+                        int parent = callNode[depth];
+                        lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+                    }
+                }
+            }
+            return component;
+        }
+    }
+}
@@ -1,17 +1,33 @@
 package csc460.csps;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
-import java.util.Scanner;
 
 import csc460.Board;
 import csc460.BoardCoordinate;
 import csc460.SearchState;
 import csc460.csps.constraints.AllDiffConstraint;
 import csc460.csps.constraints.AllSameConstraint;
+import csc460.csps.constraints.Constraint;
 import csc460.csps.constraints.MaxCountNConstraint;
 
 /**
@@ -22,6 +38,12 @@ import csc460.csps.constraints.MaxCountNConstraint;
  * @author Hank Feild (hfeild@endicott.edu)
  */
 public class GenericCSP extends CSP<String> {
+    // The first bytes of a binary model file (see saveBinaryFile); 0x89
+    // can't start a UTF-8 character, so a text file never begins with them.
+    public static final int BINARY_MAGIC = 0x89435350;
+    public static final int BINARY_VERSION = 1;
+    // The constraint types in a binary model file.
+    private static final int ALL_DIFF = 0, ALL_SAME = 1, MAX_COUNT = 2;
 
     public GenericCSP(boolean useForwardChecking, boolean useLeastConstrainingValue, boolean useMinimumRemainingValues){
         super(useForwardChecking, useLeastConstrainingValue, useMinimumRemainingValues);
@@ -53,50 +75,86 @@ public class GenericCSP extends CSP<String> {
      * different values. There are no "same value" constraints or "max count"
      * constraints.
      * 
+     * A binary model file written by saveBinaryFile is loaded with
+     * loadBinaryFile instead.
+     * 
      * @param filename The name of the CSP file to load.
      */
     public Board loadBoardFile(String filename) throws FileNotFoundException {
-        Scanner reader = new Scanner(new File(filename));
-        ArrayList<ArrayList<String>> domains = new ArrayList<ArrayList<String>>();
+        try {
+            if(isBinaryFile(filename)){
+                loadBinaryFile(filename);
+                return null;
+            }
+        } catch(FileNotFoundException e){
+            throw e;
+        } catch(IOException e){
+            throw new RuntimeException(e);
+        }
+
+        // A BufferedReader rather than a Scanner, which is slow on large files.
+        ArrayList<String> lines = new ArrayList<String>();
+        try(BufferedReader reader = new BufferedReader(new FileReader(filename))){
+            for(String line = reader.readLine(); line != null; line = reader.readLine()){
+                lines.add(line);
+            }
+        } catch(FileNotFoundException e){
+            throw e;
+        } catch(IOException e){
+            throw new RuntimeException(e);
+        }
+        loadLines(lines);
+        return null;
+    }
+
+    /**
+     * Parses a CSP from the lines of a CSP file (see loadBoardFile), e.g.,
+     * one instance out of a file that holds several.
+     * 
+     * @param lines The lines of the CSP description.
+     * @throws IllegalArgumentException If a variable is listed twice, or a
+     *         constraint has an unknown type or names an unknown variable
+     *         (e.g., the lines are a board rather than a CSP).
+     */
+    public void loadLines(List<String> lines){
+        Iterator<String> reader = lines.iterator();
         ArrayList<String> initialAssignments = new ArrayList<String>();
         variables = new ArrayList<String>();
         domain = new ArrayList<String>();
+        constraints = new ArrayList<Constraint>();
         variableIndexLookup = new HashMap<String, Integer>();
-
+        originalVariables = null;
+        representativeOf = null;
 
         // Parse variables and their initial assignments.
-        for(String variable : reader.nextLine().split(" ")){
-            variable = variable.trim();
-            String value = null;
-            int equalsIndex = variable.indexOf("=");
-            if(equalsIndex >= 0){
-                if(equalsIndex == variable.length()-1){
-                    value = "";
-                } else {
-                    value = variable.substring(equalsIndex+1);
-                }
-                variable = variable.substring(0, equalsIndex);
+        for(String token : reader.next().split(" ")){
+            String[] assignment = parseAssignment(token);
+            if(variableIndexLookup.containsKey(assignment[0])){
+                throw new IllegalArgumentException("Variable "+ assignment[0] +" is listed more than once.");
             }
-            variables.add(variable);
-            initialAssignments.add(value);
-            variableIndexLookup.put(variable, variables.size()-1);
+            variables.add(assignment[0]);
+            initialAssignments.add(assignment[1]);
+            variableIndexLookup.put(assignment[0], variables.size()-1);
         }
 
         // Parse domain values.
         //self.domain = [x.strip() for x in fd.readline().split(',')]
-        for(String domainValue : reader.nextLine().split(" ")){
+        for(String domainValue : reader.next().split(" ")){
             domain.add(domainValue.trim());
         }
 
-        for(int i = 0; i < variables.size(); i++){
-            domains.add(new ArrayList<String>(domain));
-        }
-
         // Parse constraints.
         String constraintLine[];
-        while(reader.hasNextLine()){
-            constraintLine = reader.nextLine().trim().split(" ");
+        while(reader.hasNext()){
+            String line = reader.next().trim();
+            if(line.isEmpty()){
+                continue;
+            }
+            constraintLine = line.split(" ");
             String constraintType = constraintLine[0];
+            if(!constraintType.equals("AllDiff") && !constraintType.equals("AllSame") && !constraintType.equals("MaxCount")){
+                throw new IllegalArgumentException("Unknown constraint type: "+ constraintType);
+            }
             ArrayList<String> vars = new ArrayList<String>();
 
             // Read the variables list -- this is a little different from MaxCount compared to the others.
@@ -105,6 +163,9 @@ public class GenericCSP extends CSP<String> {
                 startingIndex = 2;
             }
             for(int i = startingIndex; i < constraintLine.length; i++){
+                if(!variableIndexLookup.containsKey(constraintLine[i])){
+                    throw new IllegalArgumentException("Unknown variable in constraint: "+ line);
+                }
                 vars.add(constraintLine[i]);
             }
 
@@ -120,12 +181,276 @@ public class GenericCSP extends CSP<String> {
  
         }
 
-        reader.close();
+        if(useAllSameMerging){
+            initialAssignments = mergeAllSameGroups(initialAssignments);
+        }
+        compileModel();
 
         // Initialize the start state.
-        startState = new CSPState(initialAssignments, domains);
+        startState = buildStartState(initialAssignments);
+    }
 
-        return null;
+    /**
+     * Makes a new instance of this CSP's model (see CSP.instantiate) from
+     * the first line of a CSP file, so a file that only differs from the
+     * loaded one in its initial assignments doesn't have to be parsed again.
+     * 
+     * @param variablesLine The variables and their assignments (if any),
+     *                      listing the same variables in the same order as
+     *                      the loaded file.
+     * @return The new instance.
+     * @throws IllegalArgumentException If the line's variables don't match
+     *         the loaded ones.
+     */
+    public GenericCSP instantiate(String variablesLine){
+        ArrayList<String> loaded = originalVariables == null ? variables : originalVariables;
+        String[] tokens = variablesLine.split(" ");
+        if(tokens.length != loaded.size()){
+            throw new IllegalArgumentException("Expected "+ loaded.size() +" variables, but got "+ tokens.length);
+        }
+        ArrayList<String> initialAssignments = new ArrayList<String>(tokens.length);
+        for(int i = 0; i < tokens.length; i++){
+            String[] assignment = parseAssignment(tokens[i]);
+            if(!assignment[0].equals(loaded.get(i))){
+                throw new IllegalArgumentException("Expected variable "+ loaded.get(i) +", but got "+ assignment[0]);
+            }
+            initialAssignments.add(assignment[1]);
+        }
+        return (GenericCSP) instantiate(initialAssignments);
+    }
+
+    /**
+     * Splits a variable from the first line of a CSP file into its name and
+     * its assignment, if any.
+     * 
+     * @param token A variable name, or name=value.
+     * @return The name and the value (null if it isn't assigned).
+     */
+    private static String[] parseAssignment(String token){
+        String variable = token.trim();
+        String value = null;
+        int equalsIndex = variable.indexOf("=");
+        if(equalsIndex >= 0){
+            if(equalsIndex == variable.length()-1){
+                value = "";
+            } else {
+                value = variable.substring(equalsIndex+1);
+            }
+            variable = variable.substring(0, equalsIndex);
+        }
+        return new String[] {variable, value};
+    }
+
+    /**
+     * @param filename The name of a CSP file.
+     * @return True if the file is a binary model file (see saveBinaryFile).
+     * @throws IOException If the file couldn't be read.
+     */
+    public static boolean isBinaryFile(String filename) throws IOException {
+        try(DataInputStream in = new DataInputStream(new FileInputStream(filename))){
+            return in.available() >= 4 && in.readInt() == BINARY_MAGIC;
+        }
+    }
+
+    /**
+     * Saves the model as loaded to a binary file that loadBinaryFile can
+     * load with next to no parsing. All numbers are 4-byte big-endian ints:
+     *     * BINARY_MAGIC and BINARY_VERSION
+     *     * the number of strings, then each one's length in bytes followed
+     *       by its UTF-8 bytes (every variable name, domain value, and
+     *       initial assignment, each stored once)
+     *     * the number of variables, then each one's name and initial
+     *       assignment as string indices (-1 if it isn't assigned)
+     *     * the number of domain values, then each one's string index
+     *     * the number of constraints, then each one's type (0 for AllDiff, 1
+     *       for AllSame, 2 for MaxCount), n (for MaxCount, otherwise 0), and
+     *       number of operands followed by the operands as variable indices
+     * Operands that aren't variables are left out, as they are when the
+     * constraints are compiled.
+     * 
+     * @param filename The name of the file to write.
+     * @throws IOException If the file couldn't be written.
+     * @throws IllegalStateException If AllSame groups were merged when loading.
+     */
+    public void saveBinaryFile(String filename) throws IOException {
+        if(originalVariables != null){
+            throw new IllegalStateException("Can't save a model whose AllSame groups were merged");
+        }
+        ArrayList<String> assignments = ((CSPState) startState).getAssignments();
+        ArrayList<String> strings = new ArrayList<String>();
+        HashMap<String, Integer> stringIndexLookup = new HashMap<String, Integer>();
+        int[] variableNames = new int[variables.size()];
+        int[] variableValues = new int[variables.size()];
+        int[] domainValues = new int[domain.size()];
+        for(int i = 0; i < variables.size(); i++){
+            variableNames[i] = internString(variables.get(i), strings, stringIndexLookup);
+            String value = assignments.get(i);
+            variableValues[i] = value == null ? -1 : internString(value, strings, stringIndexLookup);
+        }
+        for(int i = 0; i < domain.size(); i++){
+            domainValues[i] = internString(domain.get(i), strings, stringIndexLookup);
+        }
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))){
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION);
+            out.writeInt(strings.size());
+            for(String string : strings){
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(variables.size());
+            for(int i = 0; i < variables.size(); i++){
+                out.writeInt(variableNames[i]);
+                out.writeInt(variableValues[i]);
+            }
+            out.writeInt(domain.size());
+            for(int value : domainValues){
+                out.writeInt(value);
+            }
+            out.writeInt(constraints.size());
+            for(Constraint constraint : constraints){
+                if(constraint instanceof AllDiffConstraint){
+                    out.writeInt(ALL_DIFF);
+                    out.writeInt(0);
+                } else if(constraint instanceof AllSameConstraint){
+                    out.writeInt(ALL_SAME);
+                    out.writeInt(0);
+                } else {
+                    out.writeInt(MAX_COUNT);
+                    out.writeInt(((MaxCountNConstraint) constraint).getMaxCount());
+                }
+                int[] operands = constraint.getVariableIndices();
+                out.writeInt(operands.length);
+                for(int operand : operands){
+                    out.writeInt(operand);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The index of the string in the list, adding it if it's new.
+     */
+    private static int internString(String string, ArrayList<String> strings, HashMap<String, Integer> stringIndexLookup){
+        Integer index = stringIndexLookup.get(string);
+        if(index == null){
+            index = strings.size();
+            strings.add(string);
+            stringIndexLookup.put(string, index);
+        }
+        return index;
+    }
+
+    /**
+     * Loads a model saved by saveBinaryFile. The file is memory mapped and
+     * read straight into the model: each string is decoded once and shared
+     * by everything that names it, and the constraints come with their
+     * operands already resolved to variable indices, so they don't need to
+     * be looked up by name (unless AllSame groups are being merged).
+     * 
+     * @param filename The name of the binary model file.
+     * @throws IOException If the file couldn't be read or isn't a binary
+     *                     model file.
+     */
+    public void loadBinaryFile(String filename) throws IOException {
+        ByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch(NoSuchFileException e){
+            throw new FileNotFoundException(filename);
+        }
+        try {
+            loadBinary(buffer);
+        } catch(BufferUnderflowException | IndexOutOfBoundsException e){
+            throw new IOException(filename +" is not a complete binary model file", e);
+        }
+    }
+
+    /**
+     * Reads a binary model (see saveBinaryFile) into this CSP.
+     * 
+     * @param buffer The model's bytes.
+     * @throws IOException If the bytes aren't a binary model.
+     */
+    private void loadBinary(ByteBuffer buffer) throws IOException {
+        if(buffer.remaining() < 8 || buffer.getInt() != BINARY_MAGIC){
+            throw new IOException("Not a binary model file");
+        }
+        int version = buffer.getInt();
+        if(version != BINARY_VERSION){
+            throw new IOException("Unsupported binary model version "+ version);
+        }
+
+        String[] strings = new String[buffer.getInt()];
+        byte[] bytes = new byte[64];
+        for(int i = 0; i < strings.length; i++){
+            int length = buffer.getInt();
+            if(length > bytes.length){
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buffer.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        int numVariables = buffer.getInt();
+        ArrayList<String> initialAssignments = new ArrayList<String>(numVariables);
+        variables = new ArrayList<String>(numVariables);
+        variableIndexLookup = new HashMap<String, Integer>(numVariables * 2);
+        originalVariables = null;
+        representativeOf = null;
+        for(int i = 0; i < numVariables; i++){
+            String variable = strings[buffer.getInt()];
+            int value = buffer.getInt();
+            variables.add(variable);
+            initialAssignments.add(value < 0 ? null : strings[value]);
+            variableIndexLookup.put(variable, i);
+        }
+
+        int numValues = buffer.getInt();
+        domain = new ArrayList<String>(numValues);
+        for(int i = 0; i < numValues; i++){
+            domain.add(strings[buffer.getInt()]);
+        }
+
+        int numConstraints = buffer.getInt();
+        constraints = new ArrayList<Constraint>(numConstraints);
+        for(int c = 0; c < numConstraints; c++){
+            int type = buffer.getInt();
+            int n = buffer.getInt();
+            int[] operands = new int[buffer.getInt()];
+            ArrayList<String> vars = new ArrayList<String>(operands.length);
+            for(int k = 0; k < operands.length; k++){
+                operands[k] = buffer.getInt();
+                vars.add(variables.get(operands[k]));
+            }
+
+            Constraint constraint;
+            if(type == ALL_DIFF){
+                constraint = new AllDiffConstraint<String>(vars);
+            } else if(type == ALL_SAME){
+                constraint = new AllSameConstraint<String>(vars);
+            } else if(type == MAX_COUNT){
+                constraint = new MaxCountNConstraint<String>(vars, n);
+            } else {
+                throw new IOException("Unknown constraint type "+ type);
+            }
+            // Merging renumbers the variables, so the operands are looked up
+            // again afterwards.
+            if(!useAllSameMerging){
+                constraint.setVariableIndices(operands);
+            }
+            constraints.add(constraint);
+        }
+
+        if(useAllSameMerging){
+            initialAssignments = mergeAllSameGroups(initialAssignments);
+        }
+        compileModel();
+
+        // Initialize the start state.
+        startState = buildStartState(initialAssignments);
     }
 
     /**
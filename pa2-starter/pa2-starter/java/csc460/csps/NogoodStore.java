@@ -0,0 +1,307 @@
+package csc460.csps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A bounded store of learned nogoods: sets of assignments (literals, each a
+ * variable paired with a value id) that can't all hold in any solution. New
+ * assignments are checked against the store through a watched-literal index:
+ * each nogood with two or more literals watches two of them that aren't
+ * currently true, and is only looked at when one of those becomes true.
+ * Then it either finds another literal to watch, is found to be violated
+ * (every literal is true), or is down to one literal that isn't true, whose
+ * value is removed from its variable's domain. Watches never need to be
+ * restored when backtracking, since undoing assignments can only make
+ * literals stop being true.
+ *
+ * Each nogood has an activity that goes up whenever it rejects or prunes an
+ * assignment, with recent bumps counting for more than old ones. When the
+ * literals stored go over the capacity, the least active half of the
+ * nogoods is dropped.
+ */
+public class NogoodStore<DomainType> {
+    private static final double ACTIVITY_DECAY = 0.95;
+
+    CSP<DomainType> csp;
+    int numValueIds;
+    long capacity;
+    ArrayList<int[]> nogoods;
+    double[] activities;
+    double bumpAmount;
+    // watchers[l] lists the nogoods watching literal l.
+    int[][] watchers;
+    int[] numWatchers;
+    long numLiterals;
+    int numEvicted;
+    // The nogoods that pruned a value during the last call to propagate.
+    int[] units;
+    int numUnits;
+
+    /**
+     * Creates an empty store.
+     *
+     * @param csp The CSP the nogoods are about; its model must already be compiled.
+     * @param numVariables The number of variables in the search.
+     * @param capacity The most literals to keep across all nogoods.
+     */
+    public NogoodStore(CSP<DomainType> csp, int numVariables, long capacity){
+        this.csp = csp;
+        this.numValueIds = csp.numValueIds;
+        this.capacity = capacity;
+        this.nogoods = new ArrayList<int[]>();
+        this.activities = new double[16];
+        this.bumpAmount = 1.0;
+        this.watchers = new int[numVariables * numValueIds][];
+        this.numWatchers = new int[numVariables * numValueIds];
+        this.units = new int[16];
+    }
+
+    /**
+     * @param variableIndex A variable's index.
+     * @param valueId A value id.
+     * @return The literal for assigning the value to the variable.
+     */
+    public int literal(int variableIndex, int valueId){
+        return variableIndex * numValueIds + valueId;
+    }
+
+    /**
+     * @param literal A literal.
+     * @return The index of the literal's variable.
+     */
+    public int variableOf(int literal){
+        return literal / numValueIds;
+    }
+
+    /**
+     * Adds a nogood. The first two literals are watched, so they should be
+     * the ones that will stop being true first (the most recently assigned).
+     *
+     * @param literals The nogood's literals; must not be empty.
+     */
+    public void add(int[] literals){
+        int id = nogoods.size();
+        nogoods.add(literals);
+        if(id == activities.length){
+            activities = Arrays.copyOf(activities, id * 2);
+        }
+        activities[id] = bumpAmount;
+        watch(literals[0], id);
+        if(literals.length > 1){
+            watch(literals[1], id);
+        }
+        numLiterals += literals.length;
+        bumpAmount /= ACTIVITY_DECAY;
+        if(bumpAmount > 1e100){
+            rescaleActivities();
+        }
+        if(numLiterals > capacity){
+            evict();
+        }
+    }
+
+    /**
+     * Checks the nogoods watching a literal that just became true. Values
+     * forced out by nogoods that are down to one literal are removed from
+     * the state (see getUnits for which nogoods did so).
+     *
+     * @param state The state the literal was just made true in.
+     * @param literal The literal.
+     * @param trail The trail to record removals on; may be null.
+     * @return The id of a violated nogood, or -1 if there isn't one.
+     */
+    public int propagate(CSP<DomainType>.CSPState state, int literal, Trail trail){
+        numUnits = 0;
+        int[] list = watchers[literal];
+        int count = numWatchers[literal];
+        int kept = 0;
+        for(int i = 0; i < count; i++){
+            int id = list[i];
+            int[] literals = nogoods.get(id);
+            if(literals.length == 1){
+                list[kept++] = id;
+                bump(id);
+                System.arraycopy(list, i+1, list, kept, count - i - 1);
+                numWatchers[literal] = kept + count - i - 1;
+                return id;
+            }
+
+            // Keep the other watch at position 0.
+            if(literals[0] == literal){
+                literals[0] = literals[1];
+                literals[1] = literal;
+            }
+            if(isFalse(state, literals[0])){
+                list[kept++] = id;
+                continue;
+            }
+
+            boolean moved = false;
+            for(int k = 2; k < literals.length && !moved; k++){
+                if(!isTrue(state, literals[k])){
+                    literals[1] = literals[k];
+                    literals[k] = literal;
+                    watch(literals[1], id);
+                    moved = true;
+                }
+            }
+            if(moved){
+                continue;
+            }
+
+            list[kept++] = id;
+            bump(id);
+            if(isTrue(state, literals[0])){
+                System.arraycopy(list, i+1, list, kept, count - i - 1);
+                numWatchers[literal] = kept + count - i - 1;
+                return id;
+            }
+            csp.removeValue(state, variableOf(literals[0]), literals[0] % numValueIds, trail);
+            if(numUnits == units.length){
+                units = Arrays.copyOf(units, numUnits * 2);
+            }
+            units[numUnits++] = id;
+        }
+        numWatchers[literal] = kept;
+        return -1;
+    }
+
+    /**
+     * @param id A nogood id.
+     * @return The nogood's literals (in no particular order).
+     */
+    public int[] getLiterals(int id){
+        return nogoods.get(id);
+    }
+
+    /**
+     * @return The ids of the nogoods that pruned a value in the last call
+     *         to propagate; only the first getNumUnits are valid.
+     */
+    public int[] getUnits(){
+        return units;
+    }
+
+    /**
+     * @return The number of nogoods that pruned a value in the last call to
+     *         propagate.
+     */
+    public int getNumUnits(){
+        return numUnits;
+    }
+
+    /**
+     * @return The number of nogoods stored.
+     */
+    public int size(){
+        return nogoods.size();
+    }
+
+    /**
+     * @return The number of literals stored across all nogoods.
+     */
+    public long getNumLiterals(){
+        return numLiterals;
+    }
+
+    /**
+     * @return The number of nogoods dropped to stay under the capacity.
+     */
+    public int getNumEvicted(){
+        return numEvicted;
+    }
+
+    /**
+     * @return True if the literal's variable is assigned the literal's value.
+     */
+    private boolean isTrue(CSP<DomainType>.CSPState state, int literal){
+        DomainType value = state.getAssignments().get(variableOf(literal));
+        return value != null && csp.valueIndexLookup.get(value) == literal % numValueIds;
+    }
+
+    /**
+     * @return True if the literal's variable is assigned another value or
+     *         no longer has the literal's value in its domain.
+     */
+    private boolean isFalse(CSP<DomainType>.CSPState state, int literal){
+        int variableIndex = variableOf(literal);
+        int valueId = literal % numValueIds;
+        DomainType value = state.getAssignments().get(variableIndex);
+        if(value != null){
+            return csp.valueIndexLookup.get(value) != valueId;
+        }
+        return !state.getDomains()[variableIndex].contains(valueId);
+    }
+
+    /**
+     * Adds a nogood to a literal's watch list.
+     */
+    private void watch(int literal, int id){
+        int[] list = watchers[literal];
+        if(list == null){
+            list = watchers[literal] = new int[4];
+        } else if(numWatchers[literal] == list.length){
+            list = watchers[literal] = Arrays.copyOf(list, list.length * 2);
+        }
+        list[numWatchers[literal]++] = id;
+    }
+
+    /**
+     * Raises a nogood's activity.
+     */
+    private void bump(int id){
+        activities[id] += bumpAmount;
+        if(activities[id] > 1e100){
+            rescaleActivities();
+        }
+    }
+
+    /**
+     * Scales every activity down so they don't overflow; only their order
+     * matters.
+     */
+    private void rescaleActivities(){
+        for(int id = 0; id < nogoods.size(); id++){
+            activities[id] *= 1e-100;
+        }
+        bumpAmount *= 1e-100;
+    }
+
+    /**
+     * Drops the least active half of the nogoods and rebuilds the watch lists.
+     */
+    private void evict(){
+        int numNogoods = nogoods.size();
+        Integer[] order = new Integer[numNogoods];
+        for(int id = 0; id < numNogoods; id++){
+            order[id] = id;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(activities[b], activities[a]));
+
+        ArrayList<int[]> keptNogoods = new ArrayList<int[]>();
+        double[] keptActivities = new double[Math.max(16, activities.length)];
+        numLiterals = 0;
+        for(int rank = 0; rank < numNogoods; rank++){
+            int[] literals = nogoods.get(order[rank]);
+            if(rank >= numNogoods / 2 || numLiterals + literals.length > capacity / 2){
+                numEvicted++;
+                continue;
+            }
+            keptActivities[keptNogoods.size()] = activities[order[rank]];
+            keptNogoods.add(literals);
+            numLiterals += literals.length;
+        }
+        nogoods = keptNogoods;
+        activities = keptActivities;
+
+        Arrays.fill(numWatchers, 0);
+        for(int id = 0; id < nogoods.size(); id++){
+            int[] literals = nogoods.get(id);
+            watch(literals[0], id);
+            if(literals.length > 1){
+                watch(literals[1], id);
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package csc460.csps;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Searches the tree in parallel on a ForkJoinPool. The top levels of the
+ * tree are split up front through CSP.getSuccessorStates, one task per
+ * successor; below that, each task searches its subtree in place with its
+ * own TrailSolver. Every so often (after a number of failed assignments) a
+ * task checks whether the pool is running short of queued work and, if so,
+ * splits the untried values at the top of its search off into new tasks
+ * (see TrailSolver.splitOff) for idle workers to steal. So big subtrees keep
+ * getting broken up for as long as there are workers with nothing to do,
+ * and no state is ever shared between workers.
+ *
+ * There are two modes: nextSolution stops every task as soon as one of them
+ * finds a solution and returns it, and countSolutions searches the whole
+ * tree and returns the number of solutions.
+ */
+public class ParallelSolver<DomainType> implements CSPSolver<DomainType> {
+    public static final int DEFAULT_SPLIT_DEPTH = 2;
+    // The number of failed assignments between checks for whether to stop
+    // or split.
+    private static final int POLL_INTERVAL = 256;
+
+    int numThreads;
+    int splitDepth;
+    CSP<DomainType> csp;
+    boolean started;
+    volatile boolean stopped;
+    AtomicReference<CSP<DomainType>.CSPState> solution;
+    // Created here rather than in init so the counts can be read (as 0)
+    // even if the search was never set up.
+    final AtomicLong numStatesExpanded = new AtomicLong();
+    final AtomicInteger maxDepth = new AtomicInteger();
+    final AtomicInteger numSplits = new AtomicInteger();
+
+    /**
+     * Creates a parallel solver that splits the top DEFAULT_SPLIT_DEPTH
+     * levels up front.
+     *
+     * @param numThreads The number of worker threads.
+     */
+    public ParallelSolver(int numThreads){
+        this(numThreads, DEFAULT_SPLIT_DEPTH);
+    }
+
+    /**
+     * @param numThreads The number of worker threads.
+     * @param splitDepth The number of levels of the tree to split into
+     *                   tasks before searching.
+     */
+    public ParallelSolver(int numThreads, int splitDepth){
+        this.numThreads = numThreads;
+        this.splitDepth = splitDepth;
+    }
+
+    /**
+     * Sets up the search to start from the CSP's start state.
+     *
+     * @param csp The CSP to solve.
+     */
+    public void init(CSP<DomainType> csp){
+        this.csp = csp;
+        this.started = false;
+        this.stopped = false;
+        this.solution = new AtomicReference<CSP<DomainType>.CSPState>();
+        this.numStatesExpanded.set(0);
+        this.maxDepth.set(0);
+        this.numSplits.set(0);
+    }
+
+    /**
+     * Searches for a solution in parallel, stopping as soon as one is found.
+     * Only the first call searches.
+     *
+     * @return A solution, or null if there isn't one (or on later calls).
+     */
+    public CSP<DomainType>.CSPState nextSolution(){
+        if(started){
+            return null;
+        }
+        search(true);
+        return solution.get();
+    }
+
+    /**
+     * Searches the whole tree in parallel. Only the first call searches.
+     *
+     * @return The number of solutions, or 0 on later calls.
+     */
+    public long countSolutions(){
+        if(started){
+            return 0;
+        }
+        return search(false);
+    }
+
+    /**
+     * Runs the search from the start state.
+     *
+     * @param firstOnly True to stop at the first solution.
+     * @return The number of solutions found.
+     */
+    @SuppressWarnings("unchecked")
+    private long search(boolean firstOnly){
+        started = true;
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            return pool.invoke(new SubtreeTask((CSP<DomainType>.CSPState) csp.getStartState(), 0, firstOnly));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A task that searches the subtree under one state. Tasks are never
+     * serialized (they hold the solver and its states), hence no
+     * serialVersionUID.
+     */
+    @SuppressWarnings("serial")
+    private class SubtreeTask extends RecursiveTask<Long> {
+        CSP<DomainType>.CSPState start;
+        int depth;
+        boolean firstOnly;
+
+        /**
+         * @param start The root of the subtree; it isn't modified.
+         * @param depth The root's depth in the whole tree.
+         * @param firstOnly True to stop at the first solution.
+         */
+        SubtreeTask(CSP<DomainType>.CSPState start, int depth, boolean firstOnly){
+            this.start = start;
+            this.depth = depth;
+            this.firstOnly = firstOnly;
+        }
+
+        /**
+         * @return The number of solutions in the subtree (as far as it was
+         *         searched before stopping).
+         */
+        @Override
+        protected Long compute(){
+            if(stopped){
+                return 0L;
+            }
+            if(depth < splitDepth && !csp.isGoal(start)){
+                numStatesExpanded.incrementAndGet();
+                return forkAll(csp.getSuccessorStates(start), depth + 1);
+            }
+
+            TrailSolver<DomainType> solver = new TrailSolver<DomainType>();
+            solver.init(csp, start);
+            solver.setFailLimit(POLL_INTERVAL);
+            ArrayList<SubtreeTask> forked = new ArrayList<SubtreeTask>();
+            long count = 0;
+            while(!stopped){
+                CSP<DomainType>.CSPState found = solver.nextSolution();
+                if(found != null){
+                    count++;
+                    if(firstOnly){
+                        if(solution.compareAndSet(null, found)){
+                            stopped = true;
+                        }
+                        break;
+                    }
+                    continue;
+                }
+                if(!solver.wasCutOff()){
+                    break;
+                }
+
+                // Hand work to idle workers while there isn't any queued up.
+                if(getSurplusQueuedTaskCount() <= 0){
+                    ArrayList<CSP<DomainType>.CSPState> subtrees = solver.splitOff();
+                    for(CSP<DomainType>.CSPState subtree : subtrees){
+                        int subtreeDepth = depth + start.getNumUnassigned() - subtree.getNumUnassigned();
+                        SubtreeTask task = new SubtreeTask(subtree, subtreeDepth, firstOnly);
+                        task.fork();
+                        forked.add(task);
+                    }
+                    if(!subtrees.isEmpty()){
+                        numSplits.incrementAndGet();
+                    }
+                }
+                solver.setFailLimit(POLL_INTERVAL);
+            }
+
+            numStatesExpanded.addAndGet(solver.getNumStatesExpanded());
+            maxDepth.accumulateAndGet(depth + solver.getMaxDepth(), Math::max);
+            for(SubtreeTask task : forked){
+                count += task.join();
+            }
+            return count;
+        }
+
+        /**
+         * Forks a task for each state and waits for them all.
+         *
+         * @return The total number of solutions they found.
+         */
+        private long forkAll(ArrayList<CSP<DomainType>.CSPState> states, int childDepth){
+            ArrayList<SubtreeTask> tasks = new ArrayList<SubtreeTask>();
+            for(CSP<DomainType>.CSPState state : states){
+                tasks.add(new SubtreeTask(state, childDepth, firstOnly));
+            }
+            long count = 0;
+            for(SubtreeTask task : ForkJoinTask.invokeAll(tasks)){
+                count += task.join();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return The number of times a task split off part of its search.
+     */
+    public int getNumSplits(){
+        return numSplits.get();
+    }
+
+    /**
+     * @return The number of states expanded across all tasks.
+     */
+    @Override
+    public int getNumStatesExpanded(){
+        return (int) Math.min(Integer.MAX_VALUE, numStatesExpanded.get());
+    }
+
+    /**
+     * @return The deepest level of the search reached by any task.
+     */
+    @Override
+    public int getMaxDepth(){
+        return maxDepth.get();
+    }
+}
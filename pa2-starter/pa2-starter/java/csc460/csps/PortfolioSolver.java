@@ -0,0 +1,185 @@
+package csc460.csps;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races several differently configured solvers against each other on a
+ * thread pool and takes the answer of whichever finishes first. Members
+ * differ in their variable and value heuristics and in the solver they use
+ * (e.g., restarts with different seeds); since no one configuration is best
+ * on every problem, running a few side by side cuts down on the searches
+ * that take far longer than they need to.
+ *
+ * Every member searches over its own copy of the CSP from CSP.shareModel, so
+ * the loaded model is shared rather than copied and memory only grows with
+ * each member's search state. When one member finds a solution, or proves
+ * there isn't one, the rest are interrupted and stop at their next step.
+ * Further solutions come from the member that won, continuing on its own.
+ */
+public class PortfolioSolver<DomainType> implements CSPSolver<DomainType> {
+    int numThreads;
+    CSP<DomainType> csp;
+    ArrayList<CSPSolver<DomainType>> solvers;
+    // Each member's heuristic settings, in the order
+    // {forward checking, MRV, dom/wdeg, LCV}.
+    ArrayList<boolean[]> settings;
+    int winner;
+    boolean started;
+
+    /**
+     * Creates an empty portfolio.
+     *
+     * @param numThreads The most members to run at once.
+     */
+    public PortfolioSolver(int numThreads){
+        this.numThreads = numThreads;
+        this.solvers = new ArrayList<CSPSolver<DomainType>>();
+        this.settings = new ArrayList<boolean[]>();
+    }
+
+    /**
+     * Adds a member to the portfolio. Settings other than the ones given
+     * (e.g., arc consistency) are the same as the CSP's.
+     *
+     * @param solver The solver the member runs; it is initialized with the
+     *               member's own copy of the CSP.
+     * @param useForwardChecking Set to true to use forward checking.
+     * @param useMinimumRemainingValues Set to true to use minimum remaining values.
+     * @param useWeightedDegree Set to true to use dom/wdeg.
+     * @param useLeastConstrainingValue Set to true to use the least constraining value.
+     */
+    public void addMember(CSPSolver<DomainType> solver, boolean useForwardChecking, boolean useMinimumRemainingValues,
+                          boolean useWeightedDegree, boolean useLeastConstrainingValue){
+        solvers.add(solver);
+        settings.add(new boolean[] {useForwardChecking, useMinimumRemainingValues, useWeightedDegree, useLeastConstrainingValue});
+    }
+
+    /**
+     * Sets up the race; the members are initialized when it starts.
+     *
+     * @param csp The CSP to solve; its model must already be loaded.
+     */
+    public void init(CSP<DomainType> csp){
+        this.csp = csp;
+        this.winner = -1;
+        this.started = false;
+    }
+
+    /**
+     * Runs the race for the first solution, or continues the winning member
+     * for later ones.
+     *
+     * @return The solved state, or null if there are no more solutions.
+     */
+    public CSP<DomainType>.CSPState nextSolution(){
+        if(started){
+            return winner >= 0 ? solvers.get(winner).nextSolution() : null;
+        }
+        started = true;
+
+        ArrayList<CSP<DomainType>.CSPState> solutions = new ArrayList<CSP<DomainType>.CSPState>();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, solvers.size())));
+        CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(pool);
+        for(int i = 0; i < solvers.size(); i++){
+            solutions.add(null);
+            completion.submit(createTask(i, solutions));
+        }
+
+        try {
+            winner = completion.take().get();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException e){
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if(winner < 0){
+            return null;
+        }
+        synchronized(solutions){
+            return solutions.get(winner);
+        }
+    }
+
+    /**
+     * @param member The index of a member.
+     * @param solutions Where the member's solution is stored.
+     * @return A task that runs the member until its first solution and
+     *         returns the member's index, or -1 if it found there was none
+     *         (or was cancelled).
+     */
+    private Callable<Integer> createTask(int member, ArrayList<CSP<DomainType>.CSPState> solutions){
+        return () -> {
+            boolean[] memberSettings = settings.get(member);
+            CSP<DomainType> view = csp.shareModel();
+            view.setUseForwardChecking(memberSettings[0]);
+            view.setUseMinimumRemainingValues(memberSettings[1]);
+            view.setUseWeightedDegree(memberSettings[2]);
+            view.setUseLeastConstrainingValue(memberSettings[3]);
+
+            CSPSolver<DomainType> solver = solvers.get(member);
+            solver.init(view);
+            CSP<DomainType>.CSPState solution = solver.nextSolution();
+            if(solution == null){
+                return -1;
+            }
+            synchronized(solutions){
+                solutions.set(member, solution);
+            }
+            return member;
+        };
+    }
+
+    /**
+     * @return The index of the member that won the race (in the order they
+     *         were added), or -1 if no member has found a solution.
+     */
+    public int getWinner(){
+        return winner;
+    }
+
+    /**
+     * @return The number of members.
+     */
+    public int size(){
+        return solvers.size();
+    }
+
+    /**
+     * @return The number of states expanded by all of the members together.
+     */
+    @Override
+    public int getNumStatesExpanded(){
+        int total = 0;
+        for(CSPSolver<DomainType> solver : solvers){
+            total += solver.getNumStatesExpanded();
+        }
+        return total;
+    }
+
+    /**
+     * @return The deepest level of the search reached by any member.
+     */
+    @Override
+    public int getMaxDepth(){
+        int max = 0;
+        for(CSPSolver<DomainType> solver : solvers){
+            max = Math.max(max, solver.getMaxDepth());
+        }
+        return max;
+    }
+}
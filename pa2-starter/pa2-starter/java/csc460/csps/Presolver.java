@@ -0,0 +1,301 @@
+package csc460.csps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import csc460.csps.constraints.AllDiffConstraint;
+import csc460.csps.constraints.AllSameConstraint;
+import csc460.csps.constraints.Constraint;
+import csc460.csps.constraints.MaxCountNConstraint;
+
+/**
+ * Simplifies a loaded CSP before searching, in four steps:
+ *     * every given (initially assigned) variable's domain is cut down to
+ *       its value
+ *     * the givens are propagated into their neighbors' domains, and on
+ *       from any domain that's left with a single value (see ArcConsistency)
+ *     * constraints that can't rule anything out are dropped: duplicates,
+ *       ones entailed by another constraint, and ones whose variables are
+ *       all fixed to values that satisfy them
+ *     * the model is compiled again over the constraints that are left
+ * and counts what each step eliminated (see getReport).
+ *
+ * For entailment, AllDiff is treated as MaxCount 1: a MaxCount k over some
+ * variables is entailed by a MaxCount m over a superset of them when m <= k
+ * (or when there are no more than k variables), and an AllSame is entailed by
+ * an AllSame over a superset. Of two equivalent constraints, the first is
+ * kept.
+ *
+ * The pruned domains stay on the CSP's start state and the constraint list
+ * is replaced rather than changed, so the model is specialized to this
+ * CSP's givens; other instances of the model are left as they were.
+ */
+public class Presolver<DomainType> {
+    CSP<DomainType> csp;
+    int numGivensFixed;
+    long numValuesBefore, numValuesRemoved;
+    int numConstraintsBefore, numDuplicates, numEntailed, numFixed;
+    boolean unsatisfiable;
+
+    /**
+     * @param csp The CSP to presolve; its model must already be loaded.
+     */
+    public Presolver(CSP<DomainType> csp){
+        this.csp = csp;
+    }
+
+    /**
+     * Presolves the CSP's start state and constraints.
+     *
+     * @return False if the problem was found to have no solution.
+     */
+    public boolean presolve(){
+        CSP<DomainType>.CSPState state = (CSP<DomainType>.CSPState) csp.startState;
+        BitSetDomain[] domains = state.getDomains();
+        ArrayList<DomainType> assignments = state.getAssignments();
+        numConstraintsBefore = csp.constraints.size();
+        numValuesBefore = 0;
+        for(BitSetDomain variableDomain : domains){
+            numValuesBefore += variableDomain.size();
+        }
+
+        // Fix the givens' domains.
+        boolean[] seeded = new boolean[csp.constraints.size()];
+        int numSeeded = 0;
+        for(int i = 0; i < assignments.size(); i++){
+            if(assignments.get(i) == null){
+                continue;
+            }
+            int valueId = csp.valueIndexLookup.get(assignments.get(i));
+            if(valueId < domains[i].capacity() && domains[i].size() > 1){
+                domains[i].retainOnly(valueId);
+                numGivensFixed++;
+            }
+            for(int c : csp.variableConstraints[i]){
+                if(!seeded[c]){
+                    seeded[c] = true;
+                    numSeeded++;
+                }
+            }
+        }
+
+        // Propagate them.
+        int[] constraintIndices = new int[numSeeded];
+        for(int c = 0, k = 0; c < seeded.length; c++){
+            if(seeded[c]){
+                constraintIndices[k++] = c;
+            }
+        }
+        unsatisfiable = !csp.getArcConsistency().establish(state, constraintIndices, null);
+        numValuesRemoved = numValuesBefore;
+        for(BitSetDomain variableDomain : domains){
+            numValuesRemoved -= variableDomain.size();
+        }
+        if(unsatisfiable){
+            return false;
+        }
+
+        // Drop the constraints that can't rule anything out.
+        ArrayList<Constraint> constraints = csp.constraints;
+        int[][] sortedOperands = new int[constraints.size()][];
+        for(int c = 0; c < constraints.size(); c++){
+            sortedOperands[c] = constraints.get(c).getVariableIndices().clone();
+            Arrays.sort(sortedOperands[c]);
+        }
+        boolean[] removed = new boolean[constraints.size()];
+        for(int c = 0; c < constraints.size(); c++){
+            int fixed = checkFixed(state, c);
+            if(fixed < 0){
+                unsatisfiable = true;
+                return false;
+            } else if(fixed > 0){
+                removed[c] = true;
+                numFixed++;
+            } else if(isTrivial(c, sortedOperands[c])){
+                removed[c] = true;
+                numEntailed++;
+            } else {
+                int entailing = findEntailing(c, sortedOperands, removed);
+                if(entailing >= 0){
+                    removed[c] = true;
+                    if(isEquivalent(c, entailing, sortedOperands)){
+                        numDuplicates++;
+                    } else {
+                        numEntailed++;
+                    }
+                }
+            }
+        }
+
+        if(numDuplicates + numEntailed + numFixed > 0){
+            ArrayList<Constraint> remaining = new ArrayList<Constraint>();
+            for(int c = 0; c < constraints.size(); c++){
+                if(!removed[c]){
+                    remaining.add(constraints.get(c));
+                }
+            }
+            csp.constraints = remaining;
+            csp.compileModel();
+        }
+        return true;
+    }
+
+    /**
+     * @return 1 if every one of the constraint's variables is fixed (assigned
+     *         or down to one value) and the values satisfy it, -1 if they
+     *         violate it, and 0 if some variable isn't fixed.
+     */
+    private int checkFixed(CSP<DomainType>.CSPState state, int constraintIndex){
+        Constraint constraint = csp.constraints.get(constraintIndex);
+        int[] operands = constraint.getVariableIndices();
+        int[] valueIds = new int[operands.length];
+        for(int i = 0; i < operands.length; i++){
+            DomainType value = state.getAssignments().get(operands[i]);
+            BitSetDomain variableDomain = state.getDomains()[operands[i]];
+            if(value != null){
+                valueIds[i] = csp.valueIndexLookup.get(value);
+            } else if(variableDomain.size() == 1){
+                valueIds[i] = variableDomain.next(0);
+            } else {
+                return 0;
+            }
+        }
+
+        if(constraint instanceof AllSameConstraint){
+            for(int valueId : valueIds){
+                if(valueId != valueIds[0]){
+                    return -1;
+                }
+            }
+            return 1;
+        }
+        int maxCount = getMaxCount(constraint);
+        int[] counts = new int[csp.numValueIds];
+        for(int valueId : valueIds){
+            if(++counts[valueId] > maxCount){
+                return -1;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * @return True if the constraint holds however its variables are
+     *         assigned: an AllSame over at most one variable, or a MaxCount k
+     *         (or AllDiff) over at most k.
+     */
+    private boolean isTrivial(int constraintIndex, int[] operands){
+        Constraint constraint = csp.constraints.get(constraintIndex);
+        if(constraint instanceof AllSameConstraint){
+            return operands.length == 0 || operands[0] == operands[operands.length - 1];
+        }
+        return operands.length <= getMaxCount(constraint);
+    }
+
+    /**
+     * @return The index of a constraint that hasn't been removed and entails
+     *         the given one (and, if they're equivalent, comes before it), or
+     *         -1 if there isn't one.
+     */
+    private int findEntailing(int constraintIndex, int[][] sortedOperands, boolean[] removed){
+        int[] operands = sortedOperands[constraintIndex];
+        if(operands.length == 0){
+            return -1;
+        }
+        // Any constraint that entails this one is on all of its variables,
+        // so only the ones on its least constrained variable need a look.
+        int fewest = operands[0];
+        for(int variableIndex : operands){
+            if(csp.variableConstraints[variableIndex].length < csp.variableConstraints[fewest].length){
+                fewest = variableIndex;
+            }
+        }
+        for(int other : csp.variableConstraints[fewest]){
+            if(other == constraintIndex || removed[other] || !entails(other, constraintIndex, sortedOperands)){
+                continue;
+            }
+            if(other < constraintIndex || !entails(constraintIndex, other, sortedOperands)){
+                return other;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return True if every assignment that satisfies constraint a also
+     *         satisfies constraint b.
+     */
+    private boolean entails(int a, int b, int[][] sortedOperands){
+        Constraint constraintA = csp.constraints.get(a), constraintB = csp.constraints.get(b);
+        boolean allSameA = constraintA instanceof AllSameConstraint;
+        boolean allSameB = constraintB instanceof AllSameConstraint;
+        if(allSameA != allSameB){
+            return false;
+        }
+        if(allSameA){
+            return containsAll(sortedOperands[a], sortedOperands[b], false);
+        }
+        return getMaxCount(constraintA) <= getMaxCount(constraintB) && containsAll(sortedOperands[a], sortedOperands[b], true);
+    }
+
+    /**
+     * @return True if the two constraints entail each other and are of the
+     *         same type over the same variables.
+     */
+    private boolean isEquivalent(int a, int b, int[][] sortedOperands){
+        Constraint constraintA = csp.constraints.get(a), constraintB = csp.constraints.get(b);
+        return constraintA.getClass() == constraintB.getClass() && Arrays.equals(sortedOperands[a], sortedOperands[b]) &&
+            (constraintA instanceof AllSameConstraint || getMaxCount(constraintA) == getMaxCount(constraintB));
+    }
+
+    /**
+     * @param superset A sorted list of variable indices.
+     * @param subset A sorted list of variable indices.
+     * @param countRepeats True if a variable listed several times in the
+     *                     subset has to be listed as many times in the
+     *                     superset.
+     * @return True if every variable in the subset is in the superset.
+     */
+    private static boolean containsAll(int[] superset, int[] subset, boolean countRepeats){
+        int i = 0;
+        for(int k = 0; k < subset.length; k++){
+            if(!countRepeats && k > 0 && subset[k] == subset[k-1]){
+                continue;
+            }
+            while(i < superset.length && superset[i] < subset[k]){
+                i++;
+            }
+            if(i == superset.length || superset[i] != subset[k]){
+                return false;
+            }
+            if(countRepeats){
+                i++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The most operands of the constraint that can share a value (1
+     *         for AllDiff).
+     */
+    private static int getMaxCount(Constraint constraint){
+        if(constraint instanceof MaxCountNConstraint){
+            return ((MaxCountNConstraint) constraint).getMaxCount();
+        }
+        return constraint instanceof AllDiffConstraint ? 1 : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return A summary of what was eliminated, one item per line.
+     */
+    public String getReport(){
+        int numRemoved = numDuplicates + numEntailed + numFixed;
+        return "Presolve givens fixed: "+ numGivensFixed +
+            "\nPresolve domain values removed: "+ numValuesRemoved +" of "+ numValuesBefore +
+            String.format(" (%.1f%%)", 100.0 * numValuesRemoved / Math.max(numValuesBefore, 1)) +
+            "\nPresolve constraints removed: "+ numRemoved +" of "+ numConstraintsBefore +
+            " ("+ numDuplicates +" duplicate, "+ numEntailed +" entailed, "+ numFixed +" with every variable fixed)"+
+            (unsatisfiable ? "\nPresolve found the problem unsatisfiable" : "");
+    }
+}
@@ -0,0 +1,140 @@
+package csc460.csps;
+
+import java.util.Random;
+
+/**
+ * Runs a RestartableSolver with randomized restarts: ties in variable and
+ * value ordering are broken at random, and each run is cut off once it has
+ * failed a set number of times, after which the search starts over from the
+ * beginning with the next cutoff in the schedule. Whatever the solver has
+ * learned (dom/wdeg weights, nogoods) carries over to the next run, so later
+ * runs start out better informed. The cutoffs follow either the Luby
+ * sequence (1, 1, 2, 1, 1, 2, 4, 1, 1, 2, ...) or a geometric series, times
+ * a unit number of failures; both grow without bound, so the search is
+ * still complete.
+ * 
+ * Once a solution has been found, the run that found it continues without a
+ * cutoff to find any further solutions; earlier runs never found one, so no
+ * solution is returned twice.
+ */
+public class RestartSolver<DomainType> implements CSPSolver<DomainType> {
+    RestartableSolver<DomainType> solver;
+    boolean useLuby;
+    long unit;
+    double factor;
+    long seed;
+    int numRestarts;
+    boolean foundSolution;
+
+    /**
+     * @param solver The solver to restart.
+     * @param useLuby True to use the Luby sequence for cutoffs; false to use
+     *                a geometric series.
+     * @param unit The number of failures in the first run (and the multiple
+     *             of every Luby cutoff).
+     * @param factor How much each geometric cutoff grows over the last.
+     * @param seed The seed for breaking ties.
+     */
+    public RestartSolver(RestartableSolver<DomainType> solver, boolean useLuby, long unit, double factor, long seed){
+        this.solver = solver;
+        this.useLuby = useLuby;
+        this.unit = unit;
+        this.factor = factor;
+        this.seed = seed;
+    }
+
+    /**
+     * Sets up the first run.
+     * 
+     * @param csp The CSP to solve.
+     */
+    public void init(CSP<DomainType> csp){
+        solver.setRandom(new Random(seed));
+        solver.init(csp);
+        numRestarts = 0;
+        foundSolution = false;
+        solver.setFailLimit(getCutoff(0));
+    }
+
+    /**
+     * Runs until the next solution is found, restarting whenever a run hits
+     * its cutoff.
+     * 
+     * @return The solved state, or null if there are no more solutions.
+     */
+    public CSP<DomainType>.CSPState nextSolution(){
+        if(foundSolution){
+            return solver.nextSolution();
+        }
+        while(true){
+            CSP<DomainType>.CSPState solution = solver.nextSolution();
+            if(solution != null){
+                foundSolution = true;
+                solver.setFailLimit(-1);
+                return solution;
+            }
+            if(!solver.wasCutOff()){
+                return null;
+            }
+            numRestarts++;
+            solver.restart();
+            solver.setFailLimit(getCutoff(numRestarts));
+        }
+    }
+
+    /**
+     * @param run The number of restarts before the run.
+     * @return The number of failures the run is allowed.
+     */
+    public long getCutoff(int run){
+        if(useLuby){
+            return unit * luby(run + 1);
+        }
+        return (long) Math.ceil(unit * Math.pow(factor, run));
+    }
+
+    /**
+     * @param i A position in the sequence, starting at 1.
+     * @return The i-th term of the Luby sequence.
+     */
+    public static long luby(long i){
+        // Find the smallest k with i <= 2^k - 1.
+        int k = 1;
+        while((1L << k) - 1 < i){
+            k++;
+        }
+        // i ends a block of length 2^k - 1, or lies in the repeat of the
+        // block before it.
+        while(i != (1L << k) - 1){
+            i -= (1L << (k-1)) - 1;
+            k = 1;
+            while((1L << k) - 1 < i){
+                k++;
+            }
+        }
+        return 1L << (k-1);
+    }
+
+    /**
+     * @return The number of times the search has started over.
+     */
+    public int getNumRestarts(){
+        return numRestarts;
+    }
+
+    /**
+     * @return The number of states expanded across all runs.
+     */
+    @Override
+    public int getNumStatesExpanded(){
+        return solver.getNumStatesExpanded();
+    }
+
+    /**
+     * @return The deepest level of the search reached in any run.
+     */
+    @Override
+    public int getMaxDepth(){
+        return solver.getMaxDepth();
+    }
+}
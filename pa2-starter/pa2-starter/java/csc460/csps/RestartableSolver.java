@@ -0,0 +1,16 @@
+package csc460.csps;
+
+import java.util.Random;
+
+/**
+ * A CSPSolver whose search can be cut off after a number of failures and
+ * started over, keeping anything it has learned, with ties in variable and
+ * value ordering broken at random. See RestartSolver.
+ */
+public interface RestartableSolver<DomainType> extends CSPSolver<DomainType> {
+    public void setRandom(Random random);
+    public void setFailLimit(long failLimit);
+    public boolean wasCutOff();
+    public void restart();
+    public long getNumFailures();
+}
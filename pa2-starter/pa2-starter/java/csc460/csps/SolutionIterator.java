@@ -0,0 +1,91 @@
+package csc460.csps;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Iterates over the solutions of a CSP, running the solver only as far as
+ * the next solution each time one is asked for, so solutions can be paged
+ * through without searching ahead or keeping the ones already seen. Each
+ * solution is a fresh copy of the assignments (see CSP.expandAssignments),
+ * so it stays valid after the search moves on.
+ *
+ * hasNext and next are synchronized, so the iterator can be handed between
+ * threads (e.g., a request thread pulling the next page of solutions), but
+ * it should only be used by one thread at a time.
+ *
+ * If the thread asking for a solution is interrupted, the solver stops
+ * where it is and hasNext throws a CancellationException rather than
+ * reporting that there are no more solutions, so a cancelled consumer can
+ * tell a cut-short search from a finished one. The interrupt flag is left
+ * set; once it's cleared, the iterator picks the search up where it stopped.
+ */
+public class SolutionIterator<DomainType> implements Iterator<ArrayList<DomainType>> {
+    CSP<DomainType> csp;
+    CSPSolver<DomainType> solver;
+    boolean started;
+    boolean finished;
+    ArrayList<DomainType> next;
+
+    /**
+     * Creates an iterator; the solver isn't initialized until the first
+     * solution is asked for.
+     *
+     * @param csp The CSP to solve; it should already be loaded and preprocessed.
+     * @param solver The solver to find solutions with.
+     */
+    public SolutionIterator(CSP<DomainType> csp, CSPSolver<DomainType> solver){
+        this.csp = csp;
+        this.solver = solver;
+    }
+
+    /**
+     * Searches for the next solution if there isn't one waiting already.
+     *
+     * @return True if there is another solution.
+     * @throws CancellationException If the thread was interrupted before the
+     *         next solution was found.
+     */
+    @Override
+    public synchronized boolean hasNext(){
+        if(next == null && !finished){
+            if(!started){
+                started = true;
+                solver.init(csp);
+            }
+            CSP<DomainType>.CSPState solution = solver.nextSolution();
+            if(solution == null && Thread.currentThread().isInterrupted()){
+                throw new CancellationException("Interrupted while searching for the next solution");
+            } else if(solution == null){
+                finished = true;
+            } else {
+                next = new ArrayList<DomainType>(csp.expandAssignments(solution.getAssignments()));
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * @return The next solution's assignments, in the order of the CSP's variables.
+     * @throws CancellationException If the thread was interrupted before the
+     *         next solution was found.
+     */
+    @Override
+    public synchronized ArrayList<DomainType> next(){
+        if(!hasNext()){
+            throw new NoSuchElementException();
+        }
+        ArrayList<DomainType> solution = next;
+        next = null;
+        return solution;
+    }
+
+    /**
+     * @return The solver, e.g., to check how many states it has expanded.
+     */
+    public CSPSolver<DomainType> getSolver(){
+        return solver;
+    }
+}
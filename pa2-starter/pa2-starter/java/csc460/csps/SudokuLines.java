@@ -0,0 +1,280 @@
+package csc460.csps;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads Sudoku puzzles stored one per line as 81 characters, row by row,
+ * with the digits 1-9 for givens and 0, '.', or '-' for empty cells (the
+ * format most puzzle collections come in). The file is memory mapped and
+ * the bytes are parsed straight into an int[81] per puzzle (0 for empty), so
+ * no Strings are made while reading and millions of puzzles can be streamed
+ * through without holding more than a window of the file in memory.
+ *
+ * Since every puzzle has the same variables and constraints, the Sudoku
+ * model is loaded once (see loadModel) and each puzzle is an instance of it
+ * (see instance). Single boards written as a 9x9 grid, like the files in
+ * csps/sudoku-boards, can be parsed with parseBoard.
+ */
+public class SudokuLines {
+    public static final int SIZE = 9;
+    public static final int NUM_CELLS = SIZE * SIZE;
+    // The most bytes of the file that are mapped at once.
+    private static final long WINDOW_SIZE = 1L << 28;
+
+    /**
+     * Loads the empty 9x9 Sudoku model into the given CSP: variables named
+     * row-column (e.g., 1-1 through 9-9, in row order, like the Sudoku CSP
+     * files), the values 1-9, and an AllDiff for every row, column, and box.
+     *
+     * @param csp The CSP to load the model into.
+     * @return The CSP.
+     */
+    public static GenericCSP loadModel(GenericCSP csp){
+        ArrayList<String> lines = new ArrayList<String>();
+        StringBuilder variables = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for(int row = 1; row <= SIZE; row++){
+            for(int col = 1; col <= SIZE; col++){
+                variables.append(variables.length() == 0 ? "" : " ").append(row +"-"+ col);
+            }
+            values.append(values.length() == 0 ? "" : " ").append(row);
+        }
+        lines.add(variables.toString());
+        lines.add(values.toString());
+
+        // Rows, then columns, then boxes (in row order), as in the CSP files.
+        for(int unit = 0; unit < 3; unit++){
+            for(int i = 0; i < SIZE; i++){
+                StringBuilder line = new StringBuilder("AllDiff");
+                for(int j = 0; j < SIZE; j++){
+                    if(unit == 0){
+                        line.append(" "+ (i+1) +"-"+ (j+1));
+                    } else if(unit == 1){
+                        line.append(" "+ (j+1) +"-"+ (i+1));
+                    } else {
+                        line.append(" "+ (i/3*3 + j/3 + 1) +"-"+ (i%3*3 + j%3 + 1));
+                    }
+                }
+                lines.add(line.toString());
+            }
+        }
+        csp.loadLines(lines);
+        return csp;
+    }
+
+    /**
+     * Makes an instance of a loaded Sudoku model for one puzzle (see
+     * CSP.instantiate), so only the puzzle's start state is built.
+     *
+     * @param model A CSP with the model from loadModel.
+     * @param givens The puzzle's cells in row order, 1-9 for givens and 0
+     *               for empty cells.
+     * @return A new CSP for the puzzle.
+     */
+    public static CSP<String> instance(CSP<String> model, int[] givens){
+        ArrayList<String> initialAssignments = new ArrayList<String>(NUM_CELLS);
+        for(int i = 0; i < NUM_CELLS; i++){
+            // The domain is 1-9 in order, so this reuses its Strings.
+            initialAssignments.add(givens[i] == 0 ? null : model.domain.get(givens[i] - 1));
+        }
+        return model.instantiate(initialAssignments);
+    }
+
+    /**
+     * Parses a Sudoku board written as a grid, like the files in
+     * csps/sudoku-boards: nine rows of nine space-separated cells, with the
+     * digits 1-9 for givens and '-' (or 0 or '.') for empty cells. Blank
+     * lines are skipped.
+     *
+     * @param lines The lines of the board.
+     * @return The board's cells in row order (see instance), or null if the
+     *         lines aren't a board.
+     */
+    public static int[] parseBoard(List<String> lines){
+        int[] cells = new int[NUM_CELLS];
+        int row = 0;
+        for(String line : lines){
+            String trimmed = line.trim();
+            if(trimmed.isEmpty()){
+                continue;
+            }
+            String[] tokens = trimmed.split("\\s+");
+            if(row == SIZE || tokens.length != SIZE){
+                return null;
+            }
+            for(int col = 0; col < SIZE; col++){
+                String token = tokens[col];
+                if(token.length() != 1){
+                    return null;
+                }
+                char c = token.charAt(0);
+                if(c >= '1' && c <= '9'){
+                    cells[row * SIZE + col] = c - '0';
+                } else if(c != '0' && c != '.' && c != '-'){
+                    return null;
+                }
+            }
+            row++;
+        }
+        return row == SIZE ? cells : null;
+    }
+
+    /**
+     * Streams the puzzles in a file, reading it lazily. Blank lines are
+     * skipped; a line that isn't a puzzle causes an
+     * IllegalArgumentException when it's reached. The file is closed when
+     * the stream is.
+     *
+     * @param file The file of puzzles, one per line.
+     * @return A stream of the puzzles' cells (see instance).
+     * @throws IOException If the file couldn't be opened.
+     */
+    public static Stream<int[]> read(Path file) throws IOException {
+        LineIterator lines = new LineIterator(FileChannel.open(file, StandardOpenOption.READ));
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(lines,
+            Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(lines::close);
+    }
+
+    /**
+     * Parses puzzles out of a file, mapping it a window at a time. When a
+     * line runs past the end of the window, the next window is mapped from
+     * the start of that line.
+     */
+    private static class LineIterator implements Iterator<int[]> {
+        FileChannel channel;
+        long fileSize;
+        long windowStart;
+        MappedByteBuffer window;
+        long lineNumber;
+        int[] next;
+
+        /**
+         * @param channel The open file to read.
+         */
+        LineIterator(FileChannel channel){
+            this.channel = channel;
+            try {
+                this.fileSize = channel.size();
+                map(0);
+            } catch(IOException e){
+                close();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Maps the window of the file starting at the given offset.
+         */
+        private void map(long start) throws IOException {
+            windowStart = start;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, fileSize - start));
+        }
+
+        /**
+         * @return True if there is another puzzle.
+         */
+        @Override
+        public boolean hasNext(){
+            if(next == null){
+                try {
+                    next = parseLine();
+                } catch(IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        /**
+         * @return The next puzzle's cells.
+         */
+        @Override
+        public int[] next(){
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            int[] cells = next;
+            next = null;
+            return cells;
+        }
+
+        /**
+         * Parses the next non-blank line, remapping if it runs off the end of
+         * the window.
+         *
+         * @return The line's cells, or null at the end of the file.
+         */
+        private int[] parseLine() throws IOException {
+            while(true){
+                int lineStart = window.position();
+                int[] cells = new int[NUM_CELLS];
+                int numCells = 0;
+                boolean badCell = false;
+                boolean ended = false;
+                while(window.hasRemaining()){
+                    byte b = window.get();
+                    if(b == '\n'){
+                        ended = true;
+                        break;
+                    } else if(b >= '1' && b <= '9'){
+                        if(numCells < NUM_CELLS){
+                            cells[numCells] = b - '0';
+                        }
+                        numCells++;
+                    } else if(b == '0' || b == '.' || b == '-'){
+                        numCells++;
+                    } else if(b != '\r'){
+                        badCell = true;
+                    }
+                }
+
+                // The line continues past the window, so map it from its start.
+                if(!ended && windowStart + window.limit() < fileSize){
+                    if(lineStart == 0){
+                        throw new IllegalArgumentException("Line "+ (lineNumber+1) +" is too long to be a puzzle.");
+                    }
+                    map(windowStart + lineStart);
+                    continue;
+                }
+
+                lineNumber++;
+                if(numCells == 0 && !badCell){
+                    // A blank line, or the end of the file.
+                    if(!ended){
+                        return null;
+                    }
+                    continue;
+                }
+                if(badCell || numCells != NUM_CELLS){
+                    throw new IllegalArgumentException("Line "+ lineNumber +" is not a puzzle of "+ NUM_CELLS +
+                        " cells (1-9 for givens, 0, '.', or '-' for empty cells).");
+                }
+                return cells;
+            }
+        }
+
+        /**
+         * Closes the file.
+         */
+        void close(){
+            try {
+                channel.close();
+            } catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
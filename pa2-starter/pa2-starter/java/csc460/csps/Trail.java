@@ -0,0 +1,104 @@
+package csc460.csps;
+
+import java.util.Arrays;
+
+/**
+ * An undo log for in-place CSP search. Every assignment and every domain
+ * value removal made to a CSPState is pushed onto the trail; backtracking
+ * rolls the state back to an earlier mark by undoing entries in reverse
+ * order. The trail only ever holds the changes along the current path, so
+ * its size is bounded by the search depth times the total domain size.
+ */
+public class Trail {
+    // Each entry is a (variable index, value id) pair; a value id of
+    // ASSIGNMENT marks an assignment instead of a domain removal.
+    private static final int ASSIGNMENT = -1;
+    // The number of ints each entry takes up; positions (marks) step by this.
+    public static final int ENTRY_SIZE = 2;
+    private int[] entries;
+    private int size;
+
+    /**
+     * Creates an empty trail.
+     */
+    public Trail(){
+        this.entries = new int[256];
+        this.size = 0;
+    }
+
+    /**
+     * Records that the given variable was just assigned (it was previously
+     * unassigned).
+     *
+     * @param variableIndex The index of the assigned variable.
+     */
+    public void recordAssignment(int variableIndex){
+        push(variableIndex, ASSIGNMENT);
+    }
+
+    /**
+     * Records that a value was just removed from a variable's domain.
+     *
+     * @param variableIndex The index of the variable whose domain shrank.
+     * @param valueId The id of the removed value.
+     */
+    public void recordRemoval(int variableIndex, int valueId){
+        push(variableIndex, valueId);
+    }
+
+    /**
+     * @return A mark that can be passed to undoTo to restore the state as it
+     *         is now.
+     */
+    public int mark(){
+        return size;
+    }
+
+    /**
+     * @param position The position of an entry: a mark, or a mark plus a
+     *                 multiple of ENTRY_SIZE that is less than mark().
+     * @return The index of the variable the entry changed.
+     */
+    public int getVariableAt(int position){
+        return entries[position];
+    }
+
+    /**
+     * @param position The position of an entry (see getVariableAt).
+     * @return True if the entry is an assignment; false if it is a domain
+     *         value removal.
+     */
+    public boolean isAssignmentAt(int position){
+        return entries[position+1] == ASSIGNMENT;
+    }
+
+    /**
+     * Undoes every change recorded since the given mark, most recent first.
+     *
+     * @param mark A value previously returned by mark().
+     * @param state The state the changes were made to.
+     */
+    public void undoTo(int mark, CSP<?>.CSPState state){
+        while(size > mark){
+            size -= 2;
+            int variableIndex = entries[size];
+            int valueId = entries[size+1];
+            if(valueId == ASSIGNMENT){
+                state.unassign(variableIndex);
+            } else {
+                state.restoreToDomain(variableIndex, valueId);
+            }
+        }
+    }
+
+    /**
+     * Adds an entry, growing the backing array as needed.
+     */
+    private void push(int variableIndex, int valueId){
+        if(size + 2 > entries.length){
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        entries[size++] = variableIndex;
+        entries[size++] = valueId;
+    }
+}
@@ -0,0 +1,257 @@
+package csc460.csps;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Backtracking search that works on a single CSPState, modifying it in place
+ * and recording every change on a Trail so it can be undone when
+ * backtracking. Unlike running DFS over getSuccessors, no states are cloned
+ * and only the current path is kept in memory: one frame (the variable being
+ * assigned and the values left to try) per level of the search.
+ * 
+ * Values are tried in the reverse of the order given by CSP.orderValues so
+ * that solutions are found in the same order as DFS, which pops the last
+ * successor off of its fringe first.
+ * 
+ * The search can be cut off after a number of failed assignments and
+ * restarted from the top (see RestartSolver), and the untried values near
+ * the top of the search can be split off to be searched elsewhere (see
+ * ParallelSolver).
+ */
+public class TrailSolver<DomainType> implements RestartableSolver<DomainType> {
+    CSP<DomainType> csp;
+    CSP<DomainType>.CSPState startState;
+    CSP<DomainType>.CSPState state;
+    Trail trail;
+    int numStatesExpanded;
+    int maxDepth;
+    boolean started;
+    Random random;
+    // The number of failed assignments; the current run is cut off once it
+    // has failLimit of its own (-1 for no limit).
+    long numFailures;
+    long runStartFailures;
+    long failLimit = -1;
+    boolean cutOff;
+
+    // The search stack; frame i holds the variable assigned at depth i+1.
+    int depth;
+    int[] frameVariables;
+    int[] frameMarks;
+    int[] frameNext;
+    ArrayList<ArrayList<DomainType>> frameValues;
+
+    /**
+     * Sets up the search to start from a copy of the CSP's start state.
+     * 
+     * @param csp The CSP to solve.
+     */
+    @SuppressWarnings("unchecked")
+    public void init(CSP<DomainType> csp){
+        init(csp, (CSP<DomainType>.CSPState) csp.getStartState());
+    }
+
+    /**
+     * Sets up the search to start from a copy of the given state, e.g., to
+     * search one subtree of a larger search.
+     * 
+     * @param csp The CSP to solve.
+     * @param startState The state to start from; it isn't modified.
+     */
+    public void init(CSP<DomainType> csp, CSP<DomainType>.CSPState startState){
+        this.csp = csp;
+        this.startState = startState;
+        this.state = startState.clone();
+        this.state.setRandom(random);
+        this.trail = new Trail();
+        int numVariables = state.getAssignments().size();
+        frameVariables = new int[numVariables];
+        frameMarks = new int[numVariables];
+        frameNext = new int[numVariables];
+        frameValues = new ArrayList<ArrayList<DomainType>>();
+        for(int i = 0; i < numVariables; i++){
+            frameValues.add(null);
+        }
+        depth = 0;
+        numStatesExpanded = 0;
+        maxDepth = 0;
+        started = false;
+        numFailures = 0;
+        runStartFailures = 0;
+        cutOff = false;
+    }
+
+    /**
+     * Resumes the search until the next solution is found.
+     * 
+     * @return The solved state, or null if there are no more solutions (or
+     *         the run was cut off, see wasCutOff, or the thread was
+     *         interrupted). The returned state is the solver's working
+     *         state; it is only valid until the next call, so clone it if it
+     *         needs to be kept.
+     */
+    public CSP<DomainType>.CSPState nextSolution(){
+        cutOff = false;
+        if(!started){
+            started = true;
+            numStatesExpanded++;
+            if(csp.isGoal(state)){
+                return state;
+            }
+            expand();
+        }
+
+        while(depth > 0){
+            if(Thread.currentThread().isInterrupted()){
+                return null;
+            }
+            int top = depth - 1;
+            trail.undoTo(frameMarks[top], state);
+
+            // Out of values for this variable; backtrack.
+            if(frameNext[top] < 0){
+                frameValues.set(top, null);
+                depth--;
+                continue;
+            }
+
+            DomainType value = frameValues.get(top).get(frameNext[top]--);
+            if(!csp.assign(state, frameVariables[top], value, trail)){
+                numFailures++;
+                if(failLimit >= 0 && numFailures - runStartFailures >= failLimit){
+                    cutOff = true;
+                    return null;
+                }
+                continue;
+            }
+
+            numStatesExpanded++;
+            maxDepth = Math.max(maxDepth, depth);
+            if(csp.isGoal(state)){
+                return state;
+            }
+            expand();
+        }
+
+        return null;
+    }
+
+    /**
+     * Pushes a frame for the next variable to assign in the current state.
+     * Nothing is pushed if every variable is already assigned.
+     */
+    private void expand(){
+        int variableIndex = csp.selectNextVariableIndex(state);
+        if(variableIndex < 0){
+            return;
+        }
+        ArrayList<DomainType> values = csp.orderValues(state, variableIndex);
+        frameVariables[depth] = variableIndex;
+        frameMarks[depth] = trail.mark();
+        frameNext[depth] = values.size() - 1;
+        frameValues.set(depth, values);
+        depth++;
+    }
+
+    /**
+     * Gives up the untried values of the shallowest level of the search that
+     * has any, so that their subtrees can be searched elsewhere; this search
+     * will no longer visit them.
+     * 
+     * @return One state per value given up: a copy of the start state with
+     *         the assignments on the path down to that level plus the
+     *         value. Values that fail to assign are left out. Empty if no
+     *         level has untried values.
+     */
+    public ArrayList<CSP<DomainType>.CSPState> splitOff(){
+        ArrayList<CSP<DomainType>.CSPState> subtrees = new ArrayList<CSP<DomainType>.CSPState>();
+        int level = 0;
+        while(level < depth && frameNext[level] < 0){
+            level++;
+        }
+        if(level == depth){
+            return subtrees;
+        }
+
+        CSP<DomainType>.CSPState path = startState.clone();
+        for(int i = 0; i < level; i++){
+            int variableIndex = frameVariables[i];
+            if(!csp.assign(path, variableIndex, state.getAssignments().get(variableIndex), null)){
+                return subtrees;
+            }
+        }
+        ArrayList<DomainType> values = frameValues.get(level);
+        for(int i = frameNext[level]; i >= 0; i--){
+            CSP<DomainType>.CSPState subtree = path.clone();
+            if(csp.assign(subtree, frameVariables[level], values.get(i), null)){
+                subtrees.add(subtree);
+            }
+        }
+        frameNext[level] = -1;
+        return subtrees;
+    }
+
+    /**
+     * @param random The source of randomness for breaking ties in variable
+     *               and value ordering, or null to break them
+     *               deterministically. Takes effect at the next init.
+     */
+    public void setRandom(Random random){
+        this.random = random;
+    }
+
+    /**
+     * @param failLimit The number of failed assignments the current run may
+     *                  make from now on before it is cut off; -1 for no limit.
+     */
+    public void setFailLimit(long failLimit){
+        this.failLimit = failLimit;
+        this.runStartFailures = numFailures;
+    }
+
+    /**
+     * @return True if the last call to nextSolution returned null because the
+     *         run was cut off rather than because the search was exhausted.
+     */
+    public boolean wasCutOff(){
+        return cutOff;
+    }
+
+    /**
+     * Undoes every assignment and starts the search over from the top. The
+     * counts of states expanded and failures carry over.
+     */
+    public void restart(){
+        while(depth > 0){
+            frameValues.set(--depth, null);
+        }
+        trail.undoTo(0, state);
+        started = false;
+        cutOff = false;
+        runStartFailures = numFailures;
+    }
+
+    /**
+     * @return The number of failed assignments so far, across all runs.
+     */
+    public long getNumFailures(){
+        return numFailures;
+    }
+
+    /**
+     * @return The number of states expanded so far.
+     */
+    @Override
+    public int getNumStatesExpanded() {
+        return numStatesExpanded;
+    }
+
+    /**
+     * @return The deepest level of the search reached so far.
+     */
+    @Override
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+}
@@ -0,0 +1,173 @@
+package csc460.csps;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An indexed bucket queue of variables keyed by small non-negative integers,
+ * used to pick the next variable under minimum remaining values. Each key
+ * has a bucket holding a doubly linked list of the variables with that key,
+ * so inserting, removing, and changing a variable's key are constant time.
+ * The lowest non-empty bucket is tracked with a pointer that only moves up
+ * while looking for the minimum and moves down when a smaller key shows up,
+ * so finding the minimum is amortized constant time for a fixed key range.
+ */
+public class VariableQueue {
+    // Buckets are first-in first-out lists; the previous link of a bucket's
+    // head points to its tail so variables can be appended in constant time.
+    private int[] bucketHeads;
+    private int[] next, previous;
+    // The key of each variable, or -1 if it isn't in the queue.
+    private int[] keys;
+    // No bucket below this one has any variables in it.
+    private int lowestBucket;
+    private int size;
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param numVariables The number of variables that may be queued.
+     * @param numKeys One more than the largest key.
+     */
+    public VariableQueue(int numVariables, int numKeys){
+        this.bucketHeads = new int[numKeys];
+        Arrays.fill(bucketHeads, -1);
+        this.next = new int[numVariables];
+        this.previous = new int[numVariables];
+        this.keys = new int[numVariables];
+        Arrays.fill(keys, -1);
+        this.lowestBucket = numKeys;
+        this.size = 0;
+    }
+
+    /**
+     * Creates a copy of the given queue.
+     *
+     * @param other The queue to copy.
+     */
+    public VariableQueue(VariableQueue other){
+        this.bucketHeads = other.bucketHeads.clone();
+        this.next = other.next.clone();
+        this.previous = other.previous.clone();
+        this.keys = other.keys.clone();
+        this.lowestBucket = other.lowestBucket;
+        this.size = other.size;
+    }
+
+    /**
+     * Adds a variable that isn't already in the queue.
+     *
+     * @param variableIndex The variable to add.
+     * @param key Its key.
+     */
+    public void insert(int variableIndex, int key){
+        int head = bucketHeads[key];
+        next[variableIndex] = -1;
+        if(head >= 0){
+            int tail = previous[head];
+            next[tail] = variableIndex;
+            previous[variableIndex] = tail;
+            previous[head] = variableIndex;
+        } else {
+            bucketHeads[key] = variableIndex;
+            previous[variableIndex] = variableIndex;
+        }
+        keys[variableIndex] = key;
+        if(key < lowestBucket){
+            lowestBucket = key;
+        }
+        size++;
+    }
+
+    /**
+     * Takes a variable out of the queue; does nothing if it isn't queued.
+     *
+     * @param variableIndex The variable to remove.
+     */
+    public void remove(int variableIndex){
+        int key = keys[variableIndex];
+        if(key < 0){
+            return;
+        }
+        int head = bucketHeads[key];
+        if(variableIndex == head){
+            bucketHeads[key] = next[variableIndex];
+            if(next[variableIndex] >= 0){
+                previous[next[variableIndex]] = previous[variableIndex];
+            }
+        } else {
+            next[previous[variableIndex]] = next[variableIndex];
+            if(next[variableIndex] >= 0){
+                previous[next[variableIndex]] = previous[variableIndex];
+            } else {
+                previous[head] = previous[variableIndex];
+            }
+        }
+        keys[variableIndex] = -1;
+        size--;
+    }
+
+    /**
+     * Moves a queued variable to a new key; does nothing if it isn't queued.
+     *
+     * @param variableIndex The variable to move.
+     * @param key Its new key.
+     */
+    public void update(int variableIndex, int key){
+        if(keys[variableIndex] < 0 || keys[variableIndex] == key){
+            return;
+        }
+        remove(variableIndex);
+        insert(variableIndex, key);
+    }
+
+    /**
+     * @param variableIndex A variable.
+     * @return True if the variable is in the queue.
+     */
+    public boolean contains(int variableIndex){
+        return keys[variableIndex] >= 0;
+    }
+
+    /**
+     * @return A variable with the smallest key, or -1 if the queue is empty.
+     */
+    public int peekMin(){
+        if(size == 0){
+            return -1;
+        }
+        while(bucketHeads[lowestBucket] < 0){
+            lowestBucket++;
+        }
+        return bucketHeads[lowestBucket];
+    }
+
+    /**
+     * Like peekMin, but picks uniformly at random among the variables tied
+     * for the smallest key.
+     *
+     * @param random The source of randomness; if null, this is the same as peekMin.
+     * @return A variable with the smallest key, or -1 if the queue is empty.
+     */
+    public int peekMin(Random random){
+        int chosen = peekMin();
+        if(random == null || chosen < 0){
+            return chosen;
+        }
+        int numTied = 1;
+        for(int v = next[chosen]; v >= 0; v = next[v]){
+            numTied++;
+            if(random.nextInt(numTied) == 0){
+                chosen = v;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * @return A deep copy of this queue.
+     */
+    public VariableQueue copy(){
+        return new VariableQueue(this);
+    }
+}
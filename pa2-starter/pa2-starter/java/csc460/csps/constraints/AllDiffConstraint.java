@@ -1,7 +1,6 @@
 package csc460.csps.constraints;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 /**
  * A constraint that requires all of the given variables to have different values.
@@ -22,16 +21,16 @@ public class AllDiffConstraint<DomainType> extends Constraint<DomainType> {
     /**
      * Checks if all of the operands that have assignments have different values.
      * 
-     * @param variableIndexLookup A map of variable names to their list index.
+     * @param operands The list indices of the operands.
      * @param assignments The current set of variable assignments.
      * 
      * @return True if all of the given variables have different values.
      */
     @Override
-    public boolean isSatisfied(HashMap<String, Integer> variableIndexLookup, ArrayList<DomainType> assignments){
+    protected boolean isSatisfied(int[] operands, ArrayList<DomainType> assignments){
         ArrayList<DomainType> values = new ArrayList<DomainType>();
-        for(String variable : variables){
-            DomainType value = assignments.get(variableIndexLookup.get(variable));
+        for(int index : operands){
+            DomainType value = assignments.get(index);
             if(value != null){
                 if(values.contains(value)){
                     return false;
@@ -42,18 +41,29 @@ public class AllDiffConstraint<DomainType> extends Constraint<DomainType> {
         return true;
     }
 
-    public ArrayList<Integer> getVariableIndices() {
-        HashMap<String, Integer> variableIndexLookup = new HashMap<>();
-        ArrayList<Integer> indices = new ArrayList<Integer>();
-        for(String variable : variables){
-            indices.add(variableIndexLookup.get(variable));
+    /**
+     * @param valueCounts The number of operands assigned each value, indexed by value id.
+     * @param numAssigned The number of operands that are assigned.
+     * @return True if no value is assigned to more than one operand.
+     */
+    @Override
+    public boolean isSatisfied(int[] valueCounts, int numAssigned){
+        for(int count : valueCounts){
+            if(count > 1){
+                return false;
+            }
         }
-        return indices;
+        return true;
     }
-    
 
-    public boolean getInvolvesVariable(int variableIndex) {
-        return getVariableIndices().contains(variableIndex);
+    /**
+     * @param valueCounts The number of operands assigned each value, indexed by value id.
+     * @param numAssigned The number of operands that are assigned.
+     * @param valueId The id of the value to be assigned.
+     * @return True if no operand has the value yet.
+     */
+    @Override
+    public boolean allowsAssignment(int[] valueCounts, int numAssigned, int valueId){
+        return valueCounts[valueId] == 0;
     }
-
 }
\ No newline at end of file
@@ -1,7 +1,6 @@
 package csc460.csps.constraints;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 
 /**
@@ -22,16 +21,16 @@ public class AllSameConstraint<DomainType> extends Constraint<DomainType> {
     /**
      * Checks if all of the operands that have assignments have the same value.
      * 
-     * @param variableIndexLookup A map of variable names to their list index.
+     * @param operands The list indices of the operands.
      * @param assignments The current set of variable assignments.
      * 
      * @return True if all of the given variables have the same value.
      */
     @Override
-    public boolean isSatisfied(HashMap<String, Integer> variableIndexLookup, ArrayList<DomainType> assignments){
+    protected boolean isSatisfied(int[] operands, ArrayList<DomainType> assignments){
         DomainType targetValue = null;
-        for(String variable : variables){
-            DomainType value = assignments.get(variableIndexLookup.get(variable));
+        for(int index : operands){
+            DomainType value = assignments.get(index);
             if(value != null){
                 if(targetValue == null){
                     targetValue = value;
@@ -42,4 +41,33 @@ public class AllSameConstraint<DomainType> extends Constraint<DomainType> {
         }
         return true;
     }
+
+    /**
+     * @param valueCounts The number of operands assigned each value, indexed by value id.
+     * @param numAssigned The number of operands that are assigned.
+     * @return True if every assigned operand has the same value.
+     */
+    @Override
+    public boolean isSatisfied(int[] valueCounts, int numAssigned){
+        if(numAssigned == 0){
+            return true;
+        }
+        for(int count : valueCounts){
+            if(count == numAssigned){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param valueCounts The number of operands assigned each value, indexed by value id.
+     * @param numAssigned The number of operands that are assigned.
+     * @param valueId The id of the value to be assigned.
+     * @return True if every assigned operand already has the value.
+     */
+    @Override
+    public boolean allowsAssignment(int[] valueCounts, int numAssigned, int valueId){
+        return valueCounts[valueId] == numAssigned;
+    }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package csc460.csps.constraints;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 
@@ -12,6 +13,7 @@ import java.util.HashMap;
 public abstract class Constraint<DomainType> {
     public String name;
     public ArrayList<String> variables;
+    protected int[] variableIndices;
 
     /**
      * Creates a new CSP constraint.
@@ -25,13 +27,155 @@ public abstract class Constraint<DomainType> {
     }
 
     /** 
-     * This should check all of the operands that have assignments and
-     * return true if the constraint is satisfied for those assignments.
+     * Checks all of the operands that have assignments, looking each operand
+     * up by name in the given lookup (whether or not the constraint has been
+     * compiled, so the answer is always for the lookup's variables).
      *
+     * @param variableIndexLookup A map of variable names to their list index.
+     * @param assignments The current set of variable assignments.
      * @return True if the constraint is satisfied for the assigned
      * variables (unassigned variables, which should a null value in the
      * assignments list, are ignored). 
      */
-    public abstract boolean isSatisfied(HashMap<String, Integer> variableIndexLookup, ArrayList<DomainType> assignments);
+    public boolean isSatisfied(HashMap<String, Integer> variableIndexLookup, ArrayList<DomainType> assignments){
+        return isSatisfied(resolve(variableIndexLookup), assignments);
+    }
+
+    /**
+     * Like isSatisfied(variableIndexLookup, assignments), but uses the
+     * operand indices the constraint was compiled with, so no names are
+     * looked up.
+     *
+     * @param assignments The current set of variable assignments, indexed
+     *                    like the variables the constraint was compiled for.
+     * @return True if the constraint is satisfied for the assigned variables.
+     * @throws IllegalStateException If the constraint hasn't been compiled.
+     */
+    public boolean isSatisfied(ArrayList<DomainType> assignments){
+        if(variableIndices == null){
+            throw new IllegalStateException("The "+ name +" constraint hasn't been compiled");
+        }
+        return isSatisfied(variableIndices, assignments);
+    }
+
+    /**
+     * This should check all of the operands that have assignments and
+     * return true if the constraint is satisfied for those assignments.
+     *
+     * @param operands The list indices of the operands.
+     * @param assignments The current set of variable assignments.
+     * @return True if the constraint is satisfied for the assigned variables.
+     */
+    protected abstract boolean isSatisfied(int[] operands, ArrayList<DomainType> assignments);
+
+    /**
+     * Checks the constraint from a running count of its operands' values
+     * rather than the assignments themselves.
+     * 
+     * @param valueCounts The number of operands assigned each value, indexed by value id.
+     * @param numAssigned The number of operands that are assigned.
+     * @return True if the constraint is satisfied for the assigned variables.
+     */
+    public abstract boolean isSatisfied(int[] valueCounts, int numAssigned);
+
+    /**
+     * Checks whether assigning a value to one more (currently unassigned)
+     * operand would keep the constraint satisfied, assuming it is satisfied
+     * now. This should take constant time.
+     * 
+     * @param valueCounts The number of operands assigned each value, indexed by value id.
+     * @param numAssigned The number of operands that are assigned.
+     * @param valueId The id of the value to be assigned.
+     * @return True if the constraint would still be satisfied.
+     */
+    public abstract boolean allowsAssignment(int[] valueCounts, int numAssigned, int valueId);
+
+    /**
+     * Like allowsAssignment, but for a variable that is listed more than once
+     * among the operands (e.g., after AllSame groups were merged), so the
+     * assignment counts once per occurrence.
+     *
+     * @param valueCounts The number of operands assigned each value, indexed by value id.
+     * @param numAssigned The number of operands that are assigned.
+     * @param valueId The id of the value to be assigned.
+     * @param occurrences The number of times the variable is listed as an operand.
+     * @return True if the constraint would still be satisfied.
+     */
+    public boolean allowsAssignment(int[] valueCounts, int numAssigned, int valueId, int occurrences){
+        if(occurrences == 1){
+            return allowsAssignment(valueCounts, numAssigned, valueId);
+        }
+        // Add the occurrences one at a time, then put the count back.
+        int added = 0;
+        boolean allowed = true;
+        while(added < occurrences && allowed){
+            allowed = allowsAssignment(valueCounts, numAssigned + added, valueId);
+            if(allowed){
+                valueCounts[valueId]++;
+                added++;
+            }
+        }
+        valueCounts[valueId] -= added;
+        return allowed;
+    }
+
+    /**
+     * Resolves the operand names to variable indices once so that checks and
+     * propagation can work on ints. Names that aren't in the lookup are
+     * dropped.
+     * 
+     * @param variableIndexLookup A map of variable names to their list index.
+     */
+    public void compile(HashMap<String, Integer> variableIndexLookup){
+        variableIndices = resolve(variableIndexLookup);
+    }
+
+    /**
+     * @param variableIndexLookup A map of variable names to their list index.
+     * @return The list indices of the operands that are in the lookup.
+     */
+    private int[] resolve(HashMap<String, Integer> variableIndexLookup){
+        int[] indices = new int[variables.size()];
+        int count = 0;
+        for(String variable : variables){
+            Integer index = variableIndexLookup.get(variable);
+            if(index != null){
+                indices[count++] = index;
+            }
+        }
+        return Arrays.copyOf(indices, count);
+    }
+
+    /**
+     * Sets the operands' variable indices directly, for a constraint whose
+     * operands were resolved ahead of time (e.g., in a binary model file).
+     * 
+     * @param variableIndices The list indices of the operands, in the same
+     *                        order as the operand names.
+     */
+    public void setVariableIndices(int[] variableIndices){
+        this.variableIndices = variableIndices;
+    }
+
+    /**
+     * @return The list indices of the operands; null if the constraint hasn't
+     *         been compiled.
+     */
+    public int[] getVariableIndices(){
+        return variableIndices;
+    }
+
+    /**
+     * @param variableIndex A variable's list index.
+     * @return True if the variable is one of the operands.
+     */
+    public boolean getInvolvesVariable(int variableIndex){
+        for(int index : variableIndices){
+            if(index == variableIndex){
+                return true;
+            }
+        }
+        return false;
+    }
 
 }
\ No newline at end of file
@@ -25,16 +25,16 @@ public class MaxCountNConstraint<DomainType> extends Constraint<DomainType> {
     /**
      * Checks if no more than n of the operands that have assignments have the same value.
      * 
-     * @param variableIndexLookup A map of variable names to their list index.
+     * @param operands The list indices of the operands.
      * @param assignments The current set of variable assignments.
      * 
      * @return True if no more than n of the given variables have the same value.
      */
     @Override
-    public boolean isSatisfied(HashMap<String, Integer> variableIndexLookup, ArrayList<DomainType> assignments){
+    protected boolean isSatisfied(int[] operands, ArrayList<DomainType> assignments){
         HashMap<DomainType, Integer> counts = new HashMap<DomainType, Integer>();
-        for(String variable : variables){
-            DomainType value = assignments.get(variableIndexLookup.get(variable));
+        for(int index : operands){
+            DomainType value = assignments.get(index);
             if(value != null){
                 if(counts.containsKey(value)){
                     if(counts.get(value) == n){
@@ -51,4 +51,30 @@ public class MaxCountNConstraint<DomainType> extends Constraint<DomainType> {
     public int getMaxCount(){
         return n;
     }
+
+    /**
+     * @param valueCounts The number of operands assigned each value, indexed by value id.
+     * @param numAssigned The number of operands that are assigned.
+     * @return True if no value is assigned to more than n operands.
+     */
+    @Override
+    public boolean isSatisfied(int[] valueCounts, int numAssigned){
+        for(int count : valueCounts){
+            if(count > n){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param valueCounts The number of operands assigned each value, indexed by value id.
+     * @param numAssigned The number of operands that are assigned.
+     * @param valueId The id of the value to be assigned.
+     * @return True if fewer than n operands have the value.
+     */
+    @Override
+    public boolean allowsAssignment(int[] valueCounts, int numAssigned, int valueId){
+        return valueCounts[valueId] < n;
+    }
 }
\ No newline at end of file
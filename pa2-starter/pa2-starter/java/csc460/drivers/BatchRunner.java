@@ -0,0 +1,388 @@
+package csc460.drivers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import csc460.csps.CSP;
+import csc460.csps.CSPSolver;
+import csc460.csps.GenericCSP;
+import csc460.csps.SudokuLines;
+
+/**
+ * Solves a batch of CSP instances in one run: every file in a directory, or
+ * every instance in a file holding several (separated by lines of just
+ * INSTANCE_SEPARATOR). The work is pipelined across threads that hand
+ * instances along through bounded queues:
+ *     * a reader thread reads and parses each instance
+ *     * a pool of solver threads solves them, each with its own CSP and solver
+ *     * the calling thread prints one line per instance as it finishes
+ * so solver threads never wait on reading or writing, and only a few
+ * instances per thread are held in memory at once. Once everything has been
+ * solved, the throughput and the percentiles of the per-instance solve
+ * times are printed. A directory may also hold binary model files (see
+ * GenericCSP.saveBinaryFile), and files of Sudoku puzzles, one per line, can
+ * be run the same way with runSudokuLines.
+ *
+ * Consecutive instances often share a model and only differ in their
+ * initial assignments (e.g., Sudoku puzzles). When an instance's domain and
+ * constraint lines are the same as the last one parsed, only its first line
+ * is parsed, into a new instance of the last model (see
+ * GenericCSP.instantiate). Sudoku boards written as a 9x9 grid (like the
+ * files in csps/sudoku-boards, which aren't CSP files) are read into the
+ * Sudoku model instead (see SudokuLines.parseBoard); anything else that
+ * isn't a CSP is reported as an error.
+ *
+ * Each result line is tab separated: the instance's name, "solved",
+ * "unsatisfiable", or "error: <message>", the number of states expanded, the
+ * solve time in milliseconds, and the solution's values in variable order.
+ */
+public class BatchRunner {
+    public static final String INSTANCE_SEPARATOR = "---";
+    // The number of instances that can wait in each queue per solver thread.
+    private static final int QUEUE_SIZE_PER_THREAD = 4;
+
+    /**
+     * One instance on its way through the pipeline.
+     */
+    private static class Job {
+        String name;
+        CSP<String> csp;
+        String status;
+        int numStatesExpanded;
+        long solveNanos;
+        String values;
+
+        Job(String name){
+            this.name = name;
+        }
+    }
+
+    // Marks the end of the instances in a queue.
+    private static final Job END = new Job(null);
+
+    Supplier<GenericCSP> cspFactory;
+    Supplier<CSPSolver<String>> solverFactory;
+    int numThreads;
+    volatile IOException readError;
+    // The last model parsed and its lines after the first, kept by the
+    // reader thread to instantiate instances that share it.
+    GenericCSP template;
+    List<String> templateBody;
+    // The Sudoku model, loaded by the reader thread the first time a board
+    // grid is read.
+    GenericCSP sudokuModel;
+    int numInstantiated;
+
+    /**
+     * @param cspFactory Creates a configured, empty CSP to load each instance into.
+     * @param solverFactory Creates a solver for each instance.
+     * @param numThreads The number of solver threads.
+     */
+    public BatchRunner(Supplier<GenericCSP> cspFactory, Supplier<CSPSolver<String>> solverFactory, int numThreads){
+        this.cspFactory = cspFactory;
+        this.solverFactory = solverFactory;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Solves every instance in the directory or file, printing results to
+     * stdout as they finish.
+     *
+     * @param path A directory of CSP files, or a file of one or more instances.
+     * @throws IOException If the instances couldn't be read.
+     * @throws InterruptedException If the thread is interrupted while waiting on the pipeline.
+     */
+    public void run(String path) throws IOException, InterruptedException {
+        run(parsed -> readAll(new File(path), parsed));
+    }
+
+    /**
+     * Solves every puzzle in a file of Sudoku puzzles, one per line (see
+     * SudokuLines), printing results to stdout as they finish. The Sudoku
+     * model is loaded once into a CSP from the CSP factory, and every puzzle
+     * is an instance of it.
+     *
+     * @param path The file of puzzles.
+     * @throws IOException If the puzzles couldn't be read.
+     * @throws InterruptedException If the thread is interrupted while waiting on the pipeline.
+     */
+    public void runSudokuLines(String path) throws IOException, InterruptedException {
+        GenericCSP model = SudokuLines.loadModel(cspFactory.get());
+        run(parsed -> readSudokuLines(new File(path), model, parsed));
+    }
+
+    /**
+     * Runs the pipeline, with the reader thread running the given reader.
+     *
+     * @param read Puts the jobs to solve on the queue it's given.
+     */
+    private void run(Consumer<BlockingQueue<Job>> read) throws IOException, InterruptedException {
+        BlockingQueue<Job> parsed = new ArrayBlockingQueue<Job>(numThreads * QUEUE_SIZE_PER_THREAD);
+        BlockingQueue<Job> finished = new ArrayBlockingQueue<Job>(numThreads * QUEUE_SIZE_PER_THREAD);
+        long startTime = System.nanoTime();
+
+        Thread reader = new Thread(() -> read.accept(parsed), "batch-reader");
+        reader.start();
+        for(int i = 0; i < numThreads; i++){
+            new Thread(() -> solveAll(parsed, finished), "batch-solver-"+ i).start();
+        }
+
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        long[] solveTimes = new long[1024];
+        int numInstances = 0, numSolved = 0, numRunning = numThreads;
+        while(numRunning > 0){
+            Job job = finished.take();
+            if(job == END){
+                numRunning--;
+                continue;
+            }
+            out.println(job.name +"\t"+ job.status +"\t"+ job.numStatesExpanded +"\t"+
+                String.format("%.3f", job.solveNanos / 1e6) +"\t"+ (job.values == null ? "" : job.values));
+            // Write in bursts while results are coming in quickly.
+            if(finished.isEmpty()){
+                out.flush();
+            }
+            if(numInstances == solveTimes.length){
+                solveTimes = Arrays.copyOf(solveTimes, numInstances * 2);
+            }
+            solveTimes[numInstances++] = job.solveNanos;
+            if(job.status.equals("solved")){
+                numSolved++;
+            }
+        }
+        reader.join();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        Arrays.sort(solveTimes, 0, numInstances);
+        out.print(
+            "\nInstances: "+ numInstances +
+            "\nSolved: "+ numSolved +
+            "\nInstantiated from the previous model: "+ numInstantiated +
+            "\nSolver threads: "+ numThreads +
+            "\nTime (s): "+ String.format("%.3f", seconds) +
+            "\nInstances per second: "+ String.format("%.1f", numInstances / Math.max(seconds, 1e-9)) +
+            "\nSolve time (ms): p50 "+ percentile(solveTimes, numInstances, 50) +
+            ", p90 "+ percentile(solveTimes, numInstances, 90) +
+            ", p99 "+ percentile(solveTimes, numInstances, 99) +
+            ", max "+ percentile(solveTimes, numInstances, 100));
+        out.println();
+        out.flush();
+        if(readError != null){
+            throw readError;
+        }
+    }
+
+    /**
+     * Reads and parses every instance, then marks the end of the queue for
+     * each solver thread. Runs on the reader thread.
+     */
+    private void readAll(File source, BlockingQueue<Job> parsed){
+        try {
+            if(source.isDirectory()){
+                File[] files = source.listFiles();
+                Arrays.sort(files);
+                for(File file : files){
+                    if(file.isFile() && GenericCSP.isBinaryFile(file.getPath())){
+                        parsed.put(parseBinary(file));
+                    } else if(file.isFile()){
+                        parsed.put(parse(file.getName(), Files.readAllLines(file.toPath())));
+                    }
+                }
+            } else {
+                try(BufferedReader reader = Files.newBufferedReader(source.toPath())){
+                    ArrayList<String> lines = new ArrayList<String>();
+                    int count = 0;
+                    for(String line = reader.readLine(); line != null; line = reader.readLine()){
+                        if(line.trim().equals(INSTANCE_SEPARATOR)){
+                            parsed.put(parse(source.getName() +"#"+ (++count), lines));
+                            lines = new ArrayList<String>();
+                        } else {
+                            lines.add(line);
+                        }
+                    }
+                    if(!lines.isEmpty()){
+                        parsed.put(parse(source.getName() +"#"+ (++count), lines));
+                    }
+                }
+            }
+        } catch(IOException e){
+            readError = e;
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        } finally {
+            endAll(parsed);
+        }
+    }
+
+    /**
+     * Reads every puzzle in a file of Sudoku puzzles into an instance of the
+     * model, then marks the end of the queue for each solver thread. Runs on
+     * the reader thread.
+     */
+    private void readSudokuLines(File source, GenericCSP model, BlockingQueue<Job> parsed){
+        try(Stream<int[]> puzzles = SudokuLines.read(source.toPath())){
+            int count = 0;
+            for(Iterator<int[]> iter = puzzles.iterator(); iter.hasNext(); ){
+                int[] cells = iter.next();
+                Job job = new Job(source.getName() +"#"+ (++count));
+                job.csp = SudokuLines.instance(model, cells);
+                numInstantiated++;
+                parsed.put(job);
+            }
+        } catch(IOException e){
+            readError = e;
+        } catch(UncheckedIOException e){
+            readError = e.getCause();
+        } catch(IllegalArgumentException e){
+            readError = new IOException(e.getMessage());
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        } finally {
+            endAll(parsed);
+        }
+    }
+
+    /**
+     * Marks the end of the queue for each solver thread.
+     */
+    private void endAll(BlockingQueue<Job> parsed){
+        try {
+            for(int i = 0; i < numThreads; i++){
+                parsed.put(END);
+            }
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return A job for the instance described by the lines (a CSP or a
+     *         Sudoku board grid), loaded into a new CSP; the job is marked as
+     *         an error if it couldn't be parsed.
+     */
+    private Job parse(String name, List<String> lines){
+        Job job = new Job(name);
+        try {
+            int[] board = SudokuLines.parseBoard(lines);
+            if(board != null){
+                if(sudokuModel == null){
+                    sudokuModel = SudokuLines.loadModel(cspFactory.get());
+                }
+                job.csp = SudokuLines.instance(sudokuModel, board);
+                numInstantiated++;
+                return job;
+            }
+            if(template != null && lines.size() > 1 && lines.subList(1, lines.size()).equals(templateBody)){
+                try {
+                    job.csp = template.instantiate(lines.get(0));
+                    numInstantiated++;
+                    return job;
+                } catch(IllegalArgumentException e){
+                    // The variables differ, so parse the whole instance.
+                }
+            }
+            GenericCSP csp = cspFactory.get();
+            csp.loadLines(lines);
+            // The job is an instance like the ones that follow, with its own
+            // start state: preprocessing (presolving and arc consistency)
+            // prunes the start state's domains in place, and a copy from
+            // shareModel would share the template's.
+            job.csp = csp.instantiate(lines.get(0));
+            template = csp;
+            templateBody = new ArrayList<String>(lines.subList(1, lines.size()));
+        } catch(RuntimeException e){
+            job.csp = null;
+            job.status = "error: "+ e;
+        }
+        return job;
+    }
+
+    /**
+     * @return A job for the binary model file (see GenericCSP.saveBinaryFile),
+     *         loaded into a new CSP; the job is marked as an error if it
+     *         couldn't be loaded.
+     */
+    private Job parseBinary(File file){
+        Job job = new Job(file.getName());
+        try {
+            GenericCSP csp = cspFactory.get();
+            csp.loadBinaryFile(file.getPath());
+            job.csp = csp;
+        } catch(IOException | RuntimeException e){
+            job.status = "error: "+ e;
+        }
+        return job;
+    }
+
+    /**
+     * Solves jobs until the end of the queue is reached. Runs on each solver
+     * thread.
+     */
+    private void solveAll(BlockingQueue<Job> parsed, BlockingQueue<Job> finished){
+        try {
+            for(Job job = parsed.take(); job != END; job = parsed.take()){
+                if(job.csp != null){
+                    solve(job);
+                }
+                finished.put(job);
+            }
+            finished.put(END);
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Solves one job, recording the outcome on it and dropping its CSP.
+     */
+    private void solve(Job job){
+        long startTime = System.nanoTime();
+        try {
+            CSP<String> csp = job.csp;
+            CSP<String>.CSPState solution = null;
+            CSPSolver<String> solver = solverFactory.get();
+            if(csp.preprocess()){
+                solver.init(csp);
+                solution = solver.nextSolution();
+            }
+            job.numStatesExpanded = solver.getNumStatesExpanded();
+            if(solution == null){
+                job.status = "unsatisfiable";
+            } else {
+                job.status = "solved";
+                job.values = String.join(" ", csp.expandAssignments(solution.getAssignments()));
+            }
+        } catch(RuntimeException e){
+            job.status = "error: "+ e;
+        }
+        job.solveNanos = System.nanoTime() - startTime;
+        job.csp = null;
+    }
+
+    /**
+     * @return The p-th percentile (nearest rank) of the first n sorted times,
+     *         in milliseconds.
+     */
+    private static String percentile(long[] sortedNanos, int n, int p){
+        if(n == 0){
+            return "-";
+        }
+        int rank = Math.max(1, (int) Math.ceil(p / 100.0 * n));
+        return String.format("%.3f", sortedNanos[rank - 1] / 1e6);
+    }
+}
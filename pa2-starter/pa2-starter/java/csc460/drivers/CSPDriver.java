@@ -5,10 +5,20 @@ import csc460.BoardCoordinate;
 import csc460.SearchNode;
 import csc460.SearchState;
 import csc460.searchalgorithms.*;
+import csc460.csps.BackjumpingSolver;
+import csc460.csps.BacktrackingSolver;
 import csc460.csps.CSP;
+import csc460.csps.CSPSolver;
 import csc460.csps.GenericCSP;
+import csc460.csps.ParallelSolver;
+import csc460.csps.PortfolioSolver;
+import csc460.csps.RestartSolver;
+import csc460.csps.RestartableSolver;
+import csc460.csps.TrailSolver;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Random;
 
 /**
  * A driver for generic constraint satisfaction problems.
@@ -17,6 +27,25 @@ import java.io.FileNotFoundException;
  */
 public class CSPDriver {
 
+    /**
+     * Preprocesses the loaded CSP (see CSP.preprocess), printing the presolve
+     * report if it was presolved and the interchangeable values if value
+     * symmetry is being broken.
+     * 
+     * @param cspProblem The CSP to preprocess.
+     * @return False if the problem was found to have no solution.
+     */
+    private static <DomainType> boolean preprocess(CSP<DomainType> cspProblem){
+        boolean solvable = cspProblem.preprocess();
+        if(cspProblem.getPresolver() != null){
+            System.out.println(cspProblem.getPresolver().getReport());
+        }
+        if(cspProblem.getInterchangeableValues().size() > 0){
+            System.out.println("Interchangeable values: "+ cspProblem.getInterchangeableValues());
+        }
+        return solvable;
+    }
+
     /**
      * Attempts to solve the CSP in the given file. The final assignment is
      * displayed to stdout.
@@ -31,6 +60,10 @@ public class CSPDriver {
     public static <DomainType> boolean run(CSP<DomainType> cspProblem, String cspFile) throws FileNotFoundException {
         SearchAlgorithm algorithm = new DFS();
         cspProblem.loadBoardFile(cspFile);
+        if(!preprocess(cspProblem)){
+            System.out.println("No solution found :( (ruled out while preprocessing)");
+            return false;
+        }
         algorithm.init(cspProblem);
 
         SearchNode searchNode = algorithm.nextNode();
@@ -62,6 +95,125 @@ public class CSPDriver {
         return false;
     }
 
+    /**
+     * Attempts to solve the CSP in the given file using a CSPSolver rather
+     * than a generic search algorithm. The final assignment is displayed to
+     * stdout.
+     * 
+     * @param cspProblem The CSP to solve.
+     * @param solver The solver to use.
+     * @param cspFile A CSP file; see `run` above.
+     */
+    public static <DomainType> boolean run(CSP<DomainType> cspProblem, CSPSolver<DomainType> solver, String cspFile) throws FileNotFoundException {
+        cspProblem.loadBoardFile(cspFile);
+        if(!preprocess(cspProblem)){
+            System.out.println("No solution found :( (ruled out while preprocessing)");
+            return false;
+        }
+        solver.init(cspProblem);
+
+        CSP<DomainType>.CSPState solution = solver.nextSolution();
+        if(solution != null){
+            System.out.print(
+                "\nSolver: "+ solver.getClass().getCanonicalName() +
+                "\nStates expanded: "+ solver.getNumStatesExpanded() +
+                "\nMax depth: "+ solver.getMaxDepth() +
+                "\nSolution (assignments):\n"+
+                cspProblem.getAssignmentsAsString(solution));
+            System.out.println();
+            return true;
+        }
+
+        // If we get here, no solution was found.
+        System.out.println("No solution found :(");
+        System.out.print(
+            "\nSolver: "+ solver.getClass().getCanonicalName() +
+            "\nStates expanded: "+ solver.getNumStatesExpanded() +
+            "\nMax depth: "+ solver.getMaxDepth());
+        System.out.println();
+        return false;
+    }
+
+    /**
+     * Finds every solution to the CSP in the given file using a CSPSolver,
+     * printing each one as it is found (if asked) rather than keeping them,
+     * and reports how many there were and how quickly they were found. With
+     * a ParallelSolver, solutions can only be counted, not printed.
+     * 
+     * @param cspProblem The CSP to solve.
+     * @param solver The solver to use.
+     * @param cspFile A CSP file; see `run` above.
+     * @param printSolutions True to print each solution; false to only count them.
+     * @return The number of solutions.
+     */
+    public static <DomainType> long runAll(CSP<DomainType> cspProblem, CSPSolver<DomainType> solver, String cspFile, boolean printSolutions) throws FileNotFoundException {
+        cspProblem.loadBoardFile(cspFile);
+        long startTime = System.nanoTime();
+        long numSolutions = 0;
+        if(!preprocess(cspProblem)){
+            System.out.println("\nSolutions: 0 (ruled out while preprocessing)");
+            return 0;
+        }
+        solver.init(cspProblem);
+        if(solver instanceof ParallelSolver && !printSolutions){
+            numSolutions = ((ParallelSolver<DomainType>) solver).countSolutions();
+        } else {
+            CSP<DomainType>.CSPState solution = solver.nextSolution();
+            while(solution != null){
+                numSolutions++;
+                if(printSolutions){
+                    System.out.print("\nSolution "+ numSolutions +":\n"+ cspProblem.getAssignmentsAsString(solution));
+                    System.out.println();
+                }
+                solution = solver.nextSolution();
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        System.out.print(
+            "\nSolver: "+ solver.getClass().getCanonicalName() +
+            "\nStates expanded: "+ solver.getNumStatesExpanded() +
+            "\nMax depth: "+ solver.getMaxDepth() +
+            "\nSolutions: "+ numSolutions +
+            "\nTime (s): "+ String.format("%.3f", seconds) +
+            "\nSolutions per second: "+ String.format("%.1f", numSolutions / Math.max(seconds, 1e-9)));
+        System.out.println();
+        return numSolutions;
+    }
+
+    /**
+     * Creates a solver other than the generic DFS.
+     * 
+     * @param engine "backtrack", "trail", or "cbj".
+     * @param nogoodCapacity The most nogood literals to keep (cbj only); 0 to not learn nogoods.
+     * @param maxNogoodLength The longest nogood to keep (cbj only).
+     * @param restarts "luby" or "geometric" to restart the search, or null to not.
+     * @param restartUnit The number of failures in the first run.
+     * @param restartFactor How much each geometric cutoff grows.
+     * @param seed The seed for breaking ties.
+     * @param seeded True if ties should be broken at random even without restarts.
+     * @return The solver.
+     */
+    private static CSPSolver<String> createSolver(String engine, long nogoodCapacity, int maxNogoodLength,
+            String restarts, long restartUnit, double restartFactor, long seed, boolean seeded){
+        if(engine.equals("backtrack")){
+            return new BacktrackingSolver<String>();
+        }
+        RestartableSolver<String> solver;
+        if(engine.equals("trail")){
+            solver = new TrailSolver<String>();
+        } else {
+            solver = new BackjumpingSolver<String>(nogoodCapacity, maxNogoodLength);
+        }
+        if(restarts != null){
+            return new RestartSolver<String>(solver, restarts.equals("luby"), restartUnit, restartFactor, seed);
+        }
+        if(seeded){
+            solver.setRandom(new Random(seed));
+        }
+        return solver;
+    }
+
     /**
      * Kicks off the solving of the CSP provided by the user.
      * 
@@ -74,15 +226,75 @@ public class CSPDriver {
         boolean useForwardChecking = false;
         boolean useLeastConstrainingValue = false;
         boolean useMinimumRemainingValues = false;
+        boolean useIncrementalChecking = false;
+        boolean useArcConsistency = false;
+        boolean useMaintainingArcConsistency = false;
+        boolean useGlobalAllDiff = false;
+        boolean useGlobalCardinality = false;
+        boolean useAllSameMerging = false;
+        boolean useWeightedDegree = false;
+        boolean usePresolve = false;
+        boolean useValueSymmetryBreaking = false;
+        String engine = "dfs";
+        long nogoodCapacity = 0;
+        int maxNogoodLength = BackjumpingSolver.DEFAULT_MAX_NOGOOD_LENGTH;
+        String restarts = null;
+        long restartUnit = 100;
+        double restartFactor = 1.5;
+        long seed = 1;
+        boolean seeded = false;
+        int portfolioSize = 0;
+        int numThreads = 0;
+        boolean findAll = false;
+        boolean countOnly = false;
+        int numBatchThreads = 0;
 
         String usage = 
-            "Usage: CSPDriver <csp type> [--help] <csp file> [-fc] [-mrv] [-lcv]\n\n"+
+            "Usage: CSPDriver <csp type> [--help] <csp file> [-fc] [-mrv] [-wdeg] [-lcv] [-ic] [-ac] [-mac] [-gac] [-gcc] [-merge] [-presolve] [-symmetry] [-engine=E] [-nogoods[=N]] [-nogood-length=L] [-restarts=R] [-restart-unit=U] [-restart-factor=F] [-seed=S] [-portfolio[=N]] [-parallel[=T]] [-all] [-count] [-batch[=T]]\n\n"+
             "<csp type> is the type of CSP to solve:\n"+
-            "    * 'generic' for a generic CSP; enter 'generic --help' for details on the expected format. \n\n"+
+            "    * 'generic' for a generic CSP; enter 'generic --help' for details on the expected format. \n"+
+            "    * 'sudoku-lines' for a file of 9x9 Sudoku puzzles, one per line as 81 characters (1-9 for givens, 0, '.', or '-'\n"+
+            "      for empty cells); they are solved as a batch (see -batch; one thread by default).\n\n"+
             "Options:\n"+
             "    -fc: Use forward checking.\n"+
             "    -mrv: Use the minimum remaining values to pick variables.\n"+
-            "    -lcv: Use the least constraining value to pick values.\n";
+            "    -wdeg: Pick the variable with the smallest domain size over its weighted degree (dom/wdeg; replaces -mrv).\n"+
+            "    -lcv: Use the least constraining value to pick values.\n"+
+            "    -ic: Check constraints incrementally using running value counts.\n"+
+            "    -ac: Make the constraints arc consistent (AC-3) before searching.\n"+
+            "    -mac: Maintain arc consistency after every assignment (implies -ac; replaces -fc).\n"+
+            "    -gac: Use the matching-based AllDiff propagator for arc consistency (with -ac or -mac).\n"+
+            "    -gcc: Use the flow-based MaxCount propagator for arc consistency (with -ac or -mac).\n"+
+            "    -merge: Merge the variables in each AllSame group into one variable before searching.\n"+
+            "    -presolve: Fix and propagate the given values and drop duplicate, entailed, and fully fixed constraints\n"+
+            "               before searching, and report what was eliminated.\n"+
+            "    -symmetry: Only try one of the values that are interchangeable (not given and in the same variables' domains)\n"+
+            "               and not yet used by any variable. With -all or -count, only one solution is found per renaming of\n"+
+            "               those values.\n"+
+            "    -engine=E: E is the search engine:\n"+
+            "        * dfs -- generic depth first search over cloned states (default)\n"+
+            "        * backtrack -- backtracking over cloned states without the generic search bookkeeping\n"+
+            "        * trail -- in-place backtracking that undoes changes from a trail\n"+
+            "        * cbj -- in-place conflict-directed backjumping that undoes changes from a trail\n"+
+            "    -nogoods[=N]: Learn nogoods when backjumping, keeping at most N literals (default 1000000; with -engine=cbj).\n"+
+            "    -nogood-length=L: Only learn nogoods with at most L assignments (default "+ BackjumpingSolver.DEFAULT_MAX_NOGOOD_LENGTH +").\n"+
+            "    -restarts=R: Restart the search whenever a run fails too many times (with -engine=trail or cbj); R is the schedule:\n"+
+            "        * luby -- U times the Luby sequence 1, 1, 2, 1, 1, 2, 4, ...\n"+
+            "        * geometric -- U, U*F, U*F^2, ...\n"+
+            "    -restart-unit=U: The number of failures in the first run (default 100).\n"+
+            "    -restart-factor=F: How much each geometric cutoff grows (default 1.5).\n"+
+            "    -seed=S: Break ties in variable and value ordering at random using seed S (with -engine=trail or cbj;\n"+
+            "             restarts always break ties at random, with seed 1 by default).\n"+
+            "    -portfolio[=N]: Race N differently configured solvers in parallel and take the first answer (default: one per\n"+
+            "                    core; with -engine=trail or cbj). The first is configured as given; the rest alternate\n"+
+            "                    -wdeg and -mrv, with and without -lcv, using forward checking and Luby restarts seeded 1, 2, ...\n"+
+            "    -parallel[=T]: Split the search tree across T worker threads that steal subtrees from each other\n"+
+            "                   (default: one per core; with -engine=trail).\n"+
+            "    -all: Print every solution as it is found rather than stopping at the first (not with -engine=dfs or -parallel).\n"+
+            "    -count: Count every solution without printing them (not with -engine=dfs).\n"+
+            "    -batch[=T]: <csp file> is a directory of CSP files or a file of instances separated by lines of "+ BatchRunner.INSTANCE_SEPARATOR +";\n"+
+            "                solve them all on T threads (default: one per core; not with -engine=dfs), printing a line\n"+
+            "                per instance as it finishes and then the throughput and solve time percentiles.\n";
 
         if (args.length < 2) {
             System.err.println(usage);
@@ -97,11 +309,120 @@ public class CSPDriver {
                 useForwardChecking = true;
             } else if(args[i].equals("-mrv")){
                 useMinimumRemainingValues = true;
+            } else if(args[i].equals("-wdeg")){
+                useWeightedDegree = true;
             } else if(args[i].equals("-lcv")){
                 useLeastConstrainingValue = true;
+            } else if(args[i].equals("-ic")){
+                useIncrementalChecking = true;
+            } else if(args[i].equals("-ac")){
+                useArcConsistency = true;
+            } else if(args[i].equals("-mac")){
+                useMaintainingArcConsistency = true;
+            } else if(args[i].equals("-gac")){
+                useGlobalAllDiff = true;
+            } else if(args[i].equals("-gcc")){
+                useGlobalCardinality = true;
+            } else if(args[i].equals("-merge")){
+                useAllSameMerging = true;
+            } else if(args[i].equals("-presolve")){
+                usePresolve = true;
+            } else if(args[i].equals("-symmetry")){
+                useValueSymmetryBreaking = true;
+            } else if(args[i].startsWith("-engine=")){
+                engine = args[i].substring(8);
+            } else if(args[i].equals("-nogoods")){
+                nogoodCapacity = 1000000;
+            } else if(args[i].startsWith("-nogoods=")){
+                nogoodCapacity = Long.parseLong(args[i].substring(9));
+            } else if(args[i].startsWith("-nogood-length=")){
+                maxNogoodLength = Integer.parseInt(args[i].substring(15));
+            } else if(args[i].startsWith("-restarts=")){
+                restarts = args[i].substring(10);
+            } else if(args[i].startsWith("-restart-unit=")){
+                restartUnit = Long.parseLong(args[i].substring(14));
+            } else if(args[i].startsWith("-restart-factor=")){
+                restartFactor = Double.parseDouble(args[i].substring(16));
+            } else if(args[i].equals("-portfolio")){
+                portfolioSize = Runtime.getRuntime().availableProcessors();
+            } else if(args[i].startsWith("-portfolio=")){
+                portfolioSize = Integer.parseInt(args[i].substring(11));
+            } else if(args[i].equals("-parallel")){
+                numThreads = Runtime.getRuntime().availableProcessors();
+            } else if(args[i].startsWith("-parallel=")){
+                numThreads = Integer.parseInt(args[i].substring(10));
+            } else if(args[i].equals("-batch")){
+                numBatchThreads = Runtime.getRuntime().availableProcessors();
+            } else if(args[i].startsWith("-batch=")){
+                numBatchThreads = Integer.parseInt(args[i].substring(7));
+            } else if(args[i].equals("-all")){
+                findAll = true;
+            } else if(args[i].equals("-count")){
+                countOnly = true;
+            } else if(args[i].startsWith("-seed=")){
+                seed = Long.parseLong(args[i].substring(6));
+                seeded = true;
             } 
         }
 
+        if(!engine.equals("dfs") && !engine.equals("backtrack") && !engine.equals("trail") && !engine.equals("cbj")){
+            System.err.println("Unknown engine: "+engine);
+            System.err.println(usage);
+            return;
+        }
+
+        if(nogoodCapacity > 0 && !engine.equals("cbj")){
+            System.err.println("-nogoods requires -engine=cbj");
+            System.err.println(usage);
+            return;
+        }
+
+        if(restarts != null && !restarts.equals("luby") && !restarts.equals("geometric")){
+            System.err.println("Unknown restart schedule: "+restarts);
+            System.err.println(usage);
+            return;
+        }
+
+        if((restarts != null || seeded) && !engine.equals("trail") && !engine.equals("cbj")){
+            System.err.println("-restarts and -seed require -engine=trail or -engine=cbj");
+            System.err.println(usage);
+            return;
+        }
+
+        if(portfolioSize > 0 && !engine.equals("trail") && !engine.equals("cbj")){
+            System.err.println("-portfolio requires -engine=trail or -engine=cbj");
+            System.err.println(usage);
+            return;
+        }
+
+        if(numThreads > 0 && (!engine.equals("trail") || portfolioSize > 0 || restarts != null || seeded)){
+            System.err.println("-parallel requires -engine=trail and can't be combined with -portfolio, -restarts, or -seed");
+            System.err.println(usage);
+            return;
+        }
+
+        if((findAll || countOnly) && engine.equals("dfs")){
+            System.err.println("-all and -count require -engine=backtrack, trail, or cbj");
+            System.err.println(usage);
+            return;
+        }
+
+        if(findAll && numThreads > 0){
+            System.err.println("-all can't be combined with -parallel; use -count");
+            System.err.println(usage);
+            return;
+        }
+
+        if(cspArg.equals("sudoku-lines") && numBatchThreads == 0){
+            numBatchThreads = 1;
+        }
+
+        if(numBatchThreads > 0 && (engine.equals("dfs") || portfolioSize > 0 || numThreads > 0 || findAll || countOnly)){
+            System.err.println("-batch requires -engine=backtrack, trail, or cbj and can't be combined with -portfolio, -parallel, -all, or -count");
+            System.err.println(usage);
+            return;
+        }
+
         if (cspFile.equals("--help")){
             if(cspArg.equals("generic")){
                 System.out.println(GenericCSP.getFileFormatDescription());
@@ -114,8 +435,72 @@ public class CSPDriver {
 
         
 
-        if(cspArg.equals("generic")){
-            CSPDriver.run(new GenericCSP(useForwardChecking, useLeastConstrainingValue, useMinimumRemainingValues), cspFile);
+        if(cspArg.equals("generic") || cspArg.equals("sudoku-lines")){
+            GenericCSP csp = new GenericCSP(useForwardChecking, useLeastConstrainingValue, useMinimumRemainingValues);
+            csp.setUseIncrementalChecking(useIncrementalChecking);
+            csp.setUseArcConsistency(useArcConsistency);
+            csp.setUseMaintainingArcConsistency(useMaintainingArcConsistency);
+            csp.setUseGlobalAllDiff(useGlobalAllDiff);
+            csp.setUseGlobalCardinality(useGlobalCardinality);
+            csp.setUseAllSameMerging(useAllSameMerging);
+            csp.setUseWeightedDegree(useWeightedDegree);
+            csp.setUsePresolve(usePresolve);
+            csp.setUseValueSymmetryBreaking(useValueSymmetryBreaking);
+            if(engine.equals("dfs")){
+                CSPDriver.run(csp, cspFile);
+                return;
+            }
+
+            if(numBatchThreads > 0){
+                final String batchEngine = engine, batchRestarts = restarts;
+                final long batchNogoodCapacity = nogoodCapacity, batchRestartUnit = restartUnit, batchSeed = seed;
+                final int batchMaxNogoodLength = maxNogoodLength;
+                final double batchRestartFactor = restartFactor;
+                final boolean batchSeeded = seeded;
+                BatchRunner batch = new BatchRunner(
+                    () -> (GenericCSP) csp.shareModel(),
+                    () -> createSolver(batchEngine, batchNogoodCapacity, batchMaxNogoodLength,
+                        batchRestarts, batchRestartUnit, batchRestartFactor, batchSeed, batchSeeded),
+                    numBatchThreads);
+                try {
+                    if(cspArg.equals("sudoku-lines")){
+                        batch.runSudokuLines(cspFile);
+                    } else {
+                        batch.run(cspFile);
+                    }
+                } catch(IOException | InterruptedException e){
+                    System.err.println("Batch failed: "+ e);
+                }
+                return;
+            }
+
+            CSPSolver<String> solver;
+            if(numThreads > 0){
+                solver = new ParallelSolver<String>(numThreads);
+            } else if(engine.equals("trail") || engine.equals("cbj")){
+                solver = createSolver(engine, nogoodCapacity, maxNogoodLength,
+                    restarts, restartUnit, restartFactor, seed, seeded);
+                if(portfolioSize > 0){
+                    PortfolioSolver<String> portfolio = new PortfolioSolver<String>(portfolioSize);
+                    portfolio.addMember(solver, useForwardChecking, useMinimumRemainingValues, useWeightedDegree, useLeastConstrainingValue);
+                    for(int member = 1; member < portfolioSize; member++){
+                        boolean useWdeg = member % 2 == 1;
+                        boolean useLcv = (member / 2) % 2 == 1;
+                        portfolio.addMember(createSolver(engine, nogoodCapacity, maxNogoodLength, "luby", restartUnit, restartFactor, member, true),
+                            true, !useWdeg, useWdeg, useLcv);
+                    }
+                    solver = portfolio;
+                }
+            } else {
+                solver = createSolver(engine, nogoodCapacity, maxNogoodLength,
+                    restarts, restartUnit, restartFactor, seed, seeded);
+            }
+
+            if(findAll || countOnly){
+                CSPDriver.runAll(csp, solver, cspFile, findAll);
+            } else {
+                CSPDriver.run(csp, solver, cspFile);
+            }
         }
 
 
@@ -0,0 +1,256 @@
+package csc460.tests;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import csc460.SearchNode;
+import csc460.csps.BackjumpingSolver;
+import csc460.csps.BacktrackingSolver;
+import csc460.csps.CSP;
+import csc460.csps.CSPSolver;
+import csc460.csps.GenericCSP;
+import csc460.csps.ParallelSolver;
+import csc460.csps.TrailSolver;
+import csc460.searchalgorithms.DFS;
+
+/**
+ * Checks that every search engine finds exactly the known number of
+ * solutions to a set of small fixture models under every option that prunes
+ * the search, so a change that makes propagation, backjumping, nogood
+ * learning, presolving, or symmetry breaking unsound (losing solutions) or
+ * incomplete (finding one twice, or a non-solution) shows up as a wrong
+ * count. Every solution found is also checked against the model's
+ * constraints and givens as loaded, with no options.
+ *
+ * The fixtures are in ../csps/tests (plus ../csps/scheduling.txt); their
+ * counts were found by brute force. Each has a count with all solutions and
+ * a count with value symmetry breaking (-symmetry), which finds one solution
+ * per renaming of the interchangeable values. Three of them have no solution.
+ *
+ * To run, from the java/ folder after compiling:
+ *
+ *     java -cp bin csc460.tests.SolutionCountTests [csps folder]
+ *
+ * Each failed check is printed, and the exit status is 1 if there were any.
+ */
+public class SolutionCountTests {
+    // The options each engine is run with, as CSPDriver flags.
+    private static final String[] OPTIONS = {
+        "",
+        "-fc -mrv",
+        "-fc -wdeg -lcv",
+        "-ic -fc -mrv",
+        "-ac",
+        "-mac",
+        "-mac -gac -gcc",
+        "-merge",
+        "-presolve",
+        "-symmetry",
+        "-fc -mrv -symmetry",
+        "-presolve -merge -mac -gac -gcc -symmetry",
+    };
+
+    // The search engines: CSPDriver's -engine values, plus -nogoods with cbj
+    // and -parallel with trail.
+    private static final String[] ENGINES = {
+        "dfs", "backtrack", "trail", "cbj", "cbj -nogoods", "trail -parallel=2"
+    };
+
+    /**
+     * A fixture model and its known solution counts.
+     */
+    private static class Fixture {
+        String file;
+        long numSolutions;
+        long numSymmetryClasses;
+
+        /**
+         * @param file The model's file, relative to the csps folder.
+         * @param numSolutions The number of solutions.
+         * @param numSymmetryClasses The number of solutions with value
+         *                           symmetry broken.
+         */
+        Fixture(String file, long numSolutions, long numSymmetryClasses){
+            this.file = file;
+            this.numSolutions = numSolutions;
+            this.numSymmetryClasses = numSymmetryClasses;
+        }
+    }
+
+    private static final Fixture[] FIXTURES = {
+        // An empty 4x4 Sudoku; the four digits are interchangeable (288 / 4!).
+        new Fixture("tests/sudoku4x4.txt", 288, 12),
+        // Three interchangeable people over six shifts (48 / 3!).
+        new Fixture("scheduling.txt", 48, 8),
+        // Givens, AllSame, MaxCount, and a duplicate and an entailed
+        // constraint (for -presolve); Ann is given, so only Bo, Cy, Di,
+        // and Ed are interchangeable.
+        new Fixture("tests/mixed.txt", 336, 14),
+        // Six shifts, five people, each person at most once.
+        new Fixture("tests/shifts-unsat.txt", 0, 0),
+        // A 4x4 Sudoku whose givens don't conflict directly but can't be completed.
+        new Fixture("tests/sudoku4x4-unsat.txt", 0, 0),
+        // Two different variables with one value between them; ruled out
+        // while preprocessing by -ac, -mac, and -presolve, before any
+        // solver is set up.
+        new Fixture("tests/one-value-unsat.txt", 0, 0),
+    };
+
+    /**
+     * Runs every engine with every option on every fixture.
+     *
+     * @param args An optional path to the csps folder (default ../csps).
+     */
+    public static void main(String[] args) throws FileNotFoundException {
+        String cspsFolder = args.length > 0 ? args[0] : ".."+ File.separator +"csps";
+        int numChecks = 0, numFailures = 0;
+        for(Fixture fixture : FIXTURES){
+            String file = cspsFolder + File.separator + fixture.file;
+            GenericCSP reference = new GenericCSP(false, false, false);
+            reference.loadBoardFile(file);
+            for(String engine : ENGINES){
+                for(String options : OPTIONS){
+                    long expected = options.contains("-symmetry") ? fixture.numSymmetryClasses : fixture.numSolutions;
+                    String failure = check(file, reference, engine, options, expected);
+                    numChecks++;
+                    if(failure != null){
+                        numFailures++;
+                        System.out.println("FAILED "+ fixture.file +" -engine="+ engine +" "+ options +": "+ failure);
+                    }
+                }
+            }
+        }
+        System.out.println("Checks: "+ numChecks +"\nFailures: "+ numFailures);
+        if(numFailures > 0){
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Counts the solutions to a model with one engine and set of options,
+     * checking each solution as it's found.
+     *
+     * @param file The model's file.
+     * @param reference The model as loaded with no options, to check the solutions against.
+     * @param engine The engine, as listed in ENGINES.
+     * @param options The options, as listed in OPTIONS.
+     * @param expected The number of solutions there should be.
+     * @return A description of what went wrong, or null if nothing did.
+     */
+    private static String check(String file, GenericCSP reference, String engine, String options, long expected)
+            throws FileNotFoundException {
+        GenericCSP csp = configure(options);
+        csp.loadBoardFile(file);
+        CSPSolver<String> solver = createSolver(engine);
+        if(!csp.preprocess()){
+            // Like CSPDriver, the solver is never set up; its counts should
+            // still be readable.
+            if(solver != null){
+                try {
+                    solver.getNumStatesExpanded();
+                    solver.getMaxDepth();
+                } catch(RuntimeException e){
+                    return "reading the counts of a solver that never ran threw "+ e;
+                }
+            }
+            return expected == 0 ? null : "ruled out while preprocessing, but there are "+ expected +" solutions";
+        }
+
+        HashSet<ArrayList<String>> solutions = new HashSet<ArrayList<String>>();
+        if(solver == null){
+            DFS algorithm = new DFS();
+            algorithm.init(csp);
+            for(SearchNode node = algorithm.nextNode(); node != null; node = algorithm.nextNode()){
+                if(csp.isGoal(node.state)){
+                    @SuppressWarnings("unchecked")
+                    CSP<String>.CSPState state = (CSP<String>.CSPState) node.state;
+                    String problem = record(csp, reference, state, solutions);
+                    if(problem != null){
+                        return problem;
+                    }
+                }
+            }
+        } else if(solver instanceof ParallelSolver){
+            solver.init(csp);
+            long count = ((ParallelSolver<String>) solver).countSolutions();
+            return count == expected ? null : "counted "+ count +" solutions, expected "+ expected;
+        } else {
+            solver.init(csp);
+            for(CSP<String>.CSPState state = solver.nextSolution(); state != null; state = solver.nextSolution()){
+                String problem = record(csp, reference, state, solutions);
+                if(problem != null){
+                    return problem;
+                }
+            }
+        }
+        return solutions.size() == expected ? null : "found "+ solutions.size() +" solutions, expected "+ expected;
+    }
+
+    /**
+     * @param engine The engine, as listed in ENGINES.
+     * @return The solver for the engine, or null for the generic DFS.
+     */
+    private static CSPSolver<String> createSolver(String engine){
+        if(engine.equals("dfs")){
+            return null;
+        } else if(engine.equals("backtrack")){
+            return new BacktrackingSolver<String>();
+        } else if(engine.equals("trail")){
+            return new TrailSolver<String>();
+        } else if(engine.equals("cbj")){
+            return new BackjumpingSolver<String>();
+        } else if(engine.equals("cbj -nogoods")){
+            return new BackjumpingSolver<String>(1000000, BackjumpingSolver.DEFAULT_MAX_NOGOOD_LENGTH);
+        }
+        return new ParallelSolver<String>(Integer.parseInt(engine.substring(engine.indexOf('=') + 1)));
+    }
+
+    /**
+     * Checks a solution and adds it to the ones found so far.
+     *
+     * @return A description of what's wrong with the solution, or null if
+     *         it's a new, valid solution.
+     */
+    private static String record(GenericCSP csp, GenericCSP reference, CSP<String>.CSPState state,
+                                 HashSet<ArrayList<String>> solutions){
+        ArrayList<String> assignments = new ArrayList<String>(csp.expandAssignments(state.getAssignments()));
+        @SuppressWarnings("unchecked")
+        CSP<String>.CSPState start = (CSP<String>.CSPState) reference.getStartState();
+        ArrayList<String> givens = start.getAssignments();
+        for(int i = 0; i < assignments.size(); i++){
+            if(assignments.get(i) == null){
+                return "solution "+ assignments +" leaves a variable unassigned";
+            }
+            if(givens.get(i) != null && !givens.get(i).equals(assignments.get(i))){
+                return "solution "+ assignments +" changes a given";
+            }
+        }
+        if(!reference.constraintsSatisfied(assignments)){
+            return "solution "+ assignments +" violates a constraint";
+        }
+        if(!solutions.add(assignments)){
+            return "solution "+ assignments +" was found twice";
+        }
+        return null;
+    }
+
+    /**
+     * @param options CSPDriver flags, separated by spaces.
+     * @return A CSP with the options set, ready to load a model.
+     */
+    private static GenericCSP configure(String options){
+        GenericCSP csp = new GenericCSP(options.contains("-fc"), options.contains("-lcv"), options.contains("-mrv"));
+        csp.setUseWeightedDegree(options.contains("-wdeg"));
+        csp.setUseIncrementalChecking(options.contains("-ic"));
+        csp.setUseArcConsistency(options.contains("-ac"));
+        csp.setUseMaintainingArcConsistency(options.contains("-mac"));
+        csp.setUseGlobalAllDiff(options.contains("-gac"));
+        csp.setUseGlobalCardinality(options.contains("-gcc"));
+        csp.setUseAllSameMerging(options.contains("-merge"));
+        csp.setUsePresolve(options.contains("-presolve"));
+        csp.setUseValueSymmetryBreaking(options.contains("-symmetry"));
+        return csp;
+    }
+}